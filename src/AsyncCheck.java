@@ -0,0 +1,259 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Class AsyncCheck
+ * Walks the asynchronous requests of the global monitor (see
+ * Monitor.pickUpAsync()) through what their callers rely on, at a table of
+ * 6 where 2 sits between 1 and 3:
+ *
+ *   completion  a request completes when the neighbour puts down, in their
+ *               thread, with a grant that puts everything back
+ *   timeout     orTimeout() fails the request, and the philosopher stops
+ *               waiting, so they may ask again
+ *   cancel      cancel() does the same, and a neighbour may eat meanwhile
+ *   duplicate   a second request while the first waits is refused
+ *   leave       leaveTableAsync() completes once the neighbour has eaten
+ *   limit       past -Ddining.async.pending, requests are rejected, and
+ *               admitted again once some complete
+ *   unlocked    dependent stages run once the monitor and the pepper queue
+ *               are released, so they may wait on someone who needs them
+ *
+ * Prints one line per check, and exits with 1 at the first that fails.
+ */
+public final class AsyncCheck {
+
+    private static final long WAIT_MS = 5000;
+
+    private AsyncCheck()
+    {
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    public static void main(String[] argv) throws Exception
+    {
+        System.setProperty("dining.log", "off");
+        completion();
+        timeout();
+        cancel();
+        duplicate();
+        leave();
+        limit();
+        unlocked();
+        System.out.println("All asynchronous checks passed.");
+    }
+
+    /**
+     * A table of 6 of the global engine, with the given pepper shakers and
+     * limit on pending requests
+     */
+    private static Monitor table(int piPeppers, int piPending)
+    {
+        System.setProperty("dining.resources", "pepper:" + piPeppers);
+        System.setProperty("dining.async.pending", Integer.toString(piPending));
+        return new Monitor(Monitor.firstTIDs(6));
+    }
+
+    private static void completion() throws Exception
+    {
+        Monitor oMonitor = table(2, Monitor.MAX_ASYNC_REQUESTS);
+        oMonitor.pickUp(1);
+        CompletableFuture<Grant> oRequest = oMonitor.pickUpAsync(2);
+        expect(!oRequest.isDone(), "completion", "2 ate next to 1");
+        Thread[] aoCompleter = new Thread[1];
+        CompletableFuture<Grant> oStage = oRequest.thenApply(g -> {
+            aoCompleter[0] = Thread.currentThread();
+            return g;
+        });
+
+        oMonitor.putDown(1);
+        expect(oStage.isDone() && aoCompleter[0] == Thread.currentThread(), "completion",
+                "2 was not handed their chopsticks by putDown()");
+        Grant oGrant = oStage.get();
+        expect(oGrant.getTID() == 2 && oGrant.getKind() == Grant.Kind.meal, "completion",
+                "granted " + oGrant.getKind() + " to " + oGrant.getTID());
+        oGrant.release();
+        //Released, 1 eats right away
+        CompletableFuture<Grant> oAgain = oMonitor.pickUpAsync(1);
+        expect(oAgain.isDone(), "completion", "2 did not put their chopsticks back");
+        oAgain.get().release();
+        pass("completion");
+    }
+
+    private static void timeout() throws Exception
+    {
+        Monitor oMonitor = table(2, Monitor.MAX_ASYNC_REQUESTS);
+        oMonitor.pickUp(1);
+        CompletableFuture<Grant> oRequest = oMonitor.pickUpAsync(2).orTimeout(50, TimeUnit.MILLISECONDS);
+        Throwable oFailure = failure(oRequest);
+        expect(oFailure instanceof TimeoutException, "timeout", "failed with " + oFailure);
+
+        //No longer waiting, once the thread that timed the request out ran
+        //its stages: asking again is allowed, and served
+        oMonitor.putDown(1);
+        long lUntil = System.currentTimeMillis() + WAIT_MS;
+        CompletableFuture<Grant> oAgain = oMonitor.pickUpAsync(2);
+        while(failure(oAgain) instanceof IllegalStateException && System.currentTimeMillis() < lUntil)
+        {
+            Thread.sleep(1);
+            oAgain = oMonitor.pickUpAsync(2);
+        }
+        expect(oAgain.isDone() && !oAgain.isCompletedExceptionally(), "timeout",
+                "2 could not ask again: " + failure(oAgain));
+        oAgain.get().release();
+        pass("timeout");
+    }
+
+    private static void cancel() throws Exception
+    {
+        Monitor oMonitor = table(2, Monitor.MAX_ASYNC_REQUESTS);
+        oMonitor.pickUp(1);
+        CompletableFuture<Grant> oRequest = oMonitor.pickUpAsync(2);
+        expect(oRequest.cancel(false), "cancel", "the request was done already");
+
+        //Withdrawn: 3 eats next to 2, and 2 may queue again behind 1 and 3
+        CompletableFuture<Grant> oNeighbour = oMonitor.pickUpAsync(3);
+        expect(oNeighbour.isDone(), "cancel", "3 waited for 2");
+        CompletableFuture<Grant> oAgain = oMonitor.pickUpAsync(2);
+        expect(!oAgain.isDone(), "cancel", "2 ate next to 1 and 3, or could not ask again");
+        oMonitor.putDown(1);
+        oNeighbour.get().release();
+        oAgain.get(WAIT_MS, TimeUnit.MILLISECONDS).release();
+        pass("cancel");
+    }
+
+    private static void duplicate() throws Exception
+    {
+        Monitor oMonitor = table(2, Monitor.MAX_ASYNC_REQUESTS);
+        oMonitor.pickUp(1);
+        CompletableFuture<Grant> oFirst = oMonitor.pickUpAsync(2);
+        Throwable oFailure = failure(oMonitor.pickUpAsync(2));
+        expect(oFailure instanceof IllegalStateException, "duplicate", "the second failed with " + oFailure);
+
+        //The first one still is the one served
+        oMonitor.putDown(1);
+        expect(oFirst.isDone(), "duplicate", "the first request was lost");
+        oFirst.get().release();
+        pass("duplicate");
+    }
+
+    private static void leave() throws Exception
+    {
+        Monitor oMonitor = table(2, Monitor.MAX_ASYNC_REQUESTS);
+        oMonitor.pickUp(1);
+        CompletableFuture<Grant> oRequest = oMonitor.leaveTableAsync(2);
+        expect(!oRequest.isDone(), "leave", "2 left while 1 held a chopstick");
+        oMonitor.putDown(1);
+        expect(oRequest.isDone() && oRequest.get().getKind() == Grant.Kind.leave, "leave", "2 did not leave");
+        Throwable oFailure = failure(oMonitor.pickUpAsync(2));
+        expect(oFailure instanceof IllegalArgumentException, "leave", "2 is still seated: " + oFailure);
+        pass("leave");
+    }
+
+    private static void limit() throws Exception
+    {
+        Monitor oMonitor = table(2, 2);
+        oMonitor.pickUp(1);
+        oMonitor.pickUp(3);
+        CompletableFuture<Grant> oTwo = oMonitor.pickUpAsync(2);
+        CompletableFuture<Grant> oFour = oMonitor.pickUpAsync(4);
+        Throwable oFailure = failure(oMonitor.pickUpAsync(5));
+        expect(oFailure instanceof RejectedExecutionException, "limit", "a third request failed with " + oFailure);
+
+        //Once served, requests no longer count
+        oMonitor.putDown(1);
+        oMonitor.putDown(3);
+        expect(oTwo.isDone() && oFour.isDone(), "limit", "2 and 4 were not served");
+        CompletableFuture<Grant> oFive = oMonitor.pickUpAsync(5);
+        expect(!oFive.isCompletedExceptionally(), "limit", "5 was rejected");
+        oTwo.get().release();
+        oFour.get().release();
+        oFive.get(WAIT_MS, TimeUnit.MILLISECONDS).release();
+        pass("limit");
+    }
+
+    private static void unlocked() throws Exception
+    {
+        //A single pepper shaker: 3 waits for it in the pepper queue
+        Monitor oMonitor = table(1, Monitor.MAX_ASYNC_REQUESTS);
+        oMonitor.pickUp(1);
+        CompletableFuture<Grant> oThree = oMonitor.pickUpAsync(3);
+        expect(!oThree.isDone(), "unlocked", "3 got the pepper 1 holds");
+
+        //The stage waits for 5, who sits next to neither 1 nor 3, to take
+        //their chopsticks and queue for the pepper too: that takes the
+        //monitor's lock, then the pepper queue's
+        boolean[] abQueued = new boolean[1];
+        CompletableFuture<Grant> oFive = new CompletableFuture<Grant>();
+        CompletableFuture<Grant> oStage = oThree.thenApply(g -> {
+            Thread oOther = new Thread(() -> oMonitor.pickUpAsync(5).whenComplete((f, e) -> {
+                if(e == null)
+                    oFive.complete(f);
+                else
+                    oFive.completeExceptionally(e);
+            }));
+            oOther.start();
+            try
+            {
+                oOther.join(WAIT_MS);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            abQueued[0] = !oOther.isAlive();
+            return g;
+        });
+
+        oMonitor.putDown(1);
+        expect(oStage.isDone() && abQueued[0], "unlocked", "the stage ran while holding a lock 5 needed");
+        oStage.get().release();
+        oFive.get(WAIT_MS, TimeUnit.MILLISECONDS).release();
+        pass("unlocked");
+    }
+
+    /**
+     * @return What the request failed with, null if it did not (yet)
+     */
+    private static Throwable failure(CompletableFuture<Grant> poRequest)
+    {
+        try
+        {
+            poRequest.get(WAIT_MS, TimeUnit.MILLISECONDS);
+            return null;
+        }
+        catch(CancellationException e)
+        {
+            return e;
+        }
+        catch(Exception e)
+        {
+            if(e instanceof TimeoutException)
+                return null;
+            return (e.getCause() instanceof CompletionException) ? e.getCause().getCause() : e.getCause();
+        }
+    }
+
+    private static void expect(boolean pbHolds, String pstrCheck, String pstrFailure)
+    {
+        if(pbHolds)
+            return;
+        System.out.println(pstrCheck + ": FAILED, " + pstrFailure);
+        System.exit(1);
+    }
+
+    private static void pass(String pstrCheck)
+    {
+        System.out.println(pstrCheck + ": ok");
+    }
+}
+
+// EOF
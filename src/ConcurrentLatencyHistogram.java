@@ -0,0 +1,80 @@
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Class ConcurrentLatencyHistogram
+ * Same buckets as LatencyHistogram, but any thread may record without a
+ * lock: the counts are atomic, and split in stripes (picked by the caller,
+ * e.g. by TID) so that threads recording at the same time rarely hit the
+ * same words. snapshot() adds the stripes up.
+ */
+public class ConcurrentLatencyHistogram {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    private final AtomicLongArray[] stripes;
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public ConcurrentLatencyHistogram(int piStripes)
+    {
+        stripes = new AtomicLongArray[Integer.highestOneBit(Math.max(1, piStripes))];
+        for(int i = 0; i < stripes.length; i++)
+        {
+            stripes[i] = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        }
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    public void record(int piStripe, long plNanos)
+    {
+        if(plNanos < 0)
+            plNanos = 0;
+        stripes[piStripe & (stripes.length - 1)].getAndIncrement(LatencyHistogram.indexOf(plNanos));
+        max.accumulate(plNanos);
+    }
+
+    /**
+     * Forgets everything recorded. Not to be called while others record.
+     */
+    public void reset()
+    {
+        for(AtomicLongArray oStripe : stripes)
+        {
+            for(int i = 0; i < LatencyHistogram.BUCKETS; i++)
+            {
+                oStripe.set(i, 0);
+            }
+        }
+        max.reset();
+    }
+
+    /**
+     * @return What was recorded so far. Values recorded while this runs may
+     * or may not be included.
+     */
+    public LatencyHistogram snapshot()
+    {
+        LatencyHistogram oSnapshot = new LatencyHistogram();
+        long lMax = max.get();
+        for(AtomicLongArray oStripe : stripes)
+        {
+            for(int i = 0; i < LatencyHistogram.BUCKETS; i++)
+            {
+                long lCount = oStripe.get(i);
+                if(lCount != 0)
+                    oSnapshot.add(i, lCount, lMax);
+            }
+        }
+        return oSnapshot;
+    }
+}
+
+// EOF
@@ -0,0 +1,41 @@
+
+/**
+ * Interface Continuations
+ * A monitor that hands chopsticks to a continuation, rather than to a
+ * parked thread: for a runtime that runs philosophers as tasks (see
+ * DiningTasks), and for the asynchronous requests (see
+ * Monitor.pickUpAsync()). Only the global engine, alone or at the tables of
+ * a DiningHall, can: see Monitor.continuations().
+ *
+ * Talking and napping take a continuation at every engine, see
+ * Monitor.requestTalk(int, Runnable).
+ */
+public interface Continuations {
+
+    /**
+     * Same as Monitor.pickUp(), without blocking. Whoever grants the
+     * chopsticks or the pepper runs the continuation, once they released
+     * the lock. Replaying a schedule, the continuation waits without
+     * patience.
+     *
+     * @param poThen Run once the philosopher has their chopsticks and
+     * pepper, if they do not right away. Must not block: it should only
+     * hand the meal to an executor.
+     * @return Whether the philosopher may eat right away, in which case
+     * poThen is not run
+     */
+    boolean pickUp(int piTID, Runnable poThen);
+
+    /**
+     * Same as Monitor.leaveTable(), without blocking
+     *
+     * @param poThen Run once the philosopher has left, if they could not
+     * right away, by whoever let them (after leaving on their behalf). Must
+     * not block.
+     * @return Whether the philosopher left right away, in which case poThen
+     * is not run
+     */
+    boolean leaveTable(int threadID, Runnable poThen);
+}
+
+// EOF
@@ -0,0 +1,399 @@
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Class DiningConfig
+ * Everything a dinner is run with, each with a type and a default. Values
+ * come from, each overriding the one before:
+ *
+ *   - the defaults, from the constants of DiningPhilosophers, Philosopher
+ *     and Monitor
+ *   - a properties file, named by --config=PATH or -Ddining.config=PATH
+ *   - system properties, -Ddining.KEY=VALUE
+ *   - the command line, --KEY=VALUE, or the positional
+ *     NUMBER_OF_PHILOSOPHERS [ENGINE [THREAD_MODEL]]
+ *
+ * The keys below go without the "dining." prefix in the file and on the
+ * command line. The first ones may be swept: a comma-separated list runs the
+ * dinner once for each value, and integers also take ranges, "8..65536x2"
+ * (doubling), "1..8+2" (adding) or "1..8". With several swept keys, every
+ * combination is run, one after the other in this JVM (see DiningSweep).
+ * The others keep one value for the whole JVM.
+ */
+public final class DiningConfig {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    /**
+     * Keys that may be swept, in the order combinations are enumerated
+     */
+    static final String[] SWEEPABLE = {
+        "philosophers", "engine", "arbitration", "acquisition", "threads", "tables", "placement",
+        "layout", "partitions", "steps", "action.ms", "odds.invite", "odds.leave", "odds.talk", "seed"
+    };
+
+    /**
+     * Keys that keep one value for the whole JVM, which may be none.
+     * resources is a comma-separated list itself.
+     */
+    static final String[] PER_JVM = {
+        "resources", "log", "log.file", "log.capacity", "metrics", "record",
+        "replay", "replay.patience", "async.pending", "csv"
+    };
+
+    static final String KEYS =
+            "  philosophers=N            philosophers at the start (" + DiningPhilosophers.DEFAULT_NUMBER_OF_PHILOSOPHERS + ")\n"
+            + "  engine=NAME               global, striped, lockfree or partitioned (" + DiningPhilosophers.DEFAULT_ENGINE + ")\n"
+            + "  arbitration=NAME          priority, or fair: bounded bypass (priority)\n"
+            + "  acquisition=NAME          park, spin or adaptive: how the global engine waits (park)\n"
+            + "  threads=MODEL             platform, virtual, tasks or simulated (platform)\n"
+            + "  tables=N                  tables of a DiningHall (1)\n"
+            + "  placement=NAME            blocks, roundrobin or leastloaded (blocks)\n"
+            + "  layout=NAME               packed, padded or striped seats (striped), see SeatLayout\n"
+            + "  partitions=N              locks of the partitioned engine, 0: 4 per core (0)\n"
+            + "  steps=N                   meals per philosopher (" + DiningPhilosophers.DINING_STEPS + ")\n"
+            + "  action.ms=N               max time to eat, think or nap (" + Philosopher.TIME_TO_WASTE + ")\n"
+            + "  odds.invite=P             of inviting a friend after a meal (" + Philosopher.ODDS_OF_INVITING_FRIEND + ")\n"
+            + "  odds.leave=P              of leaving after a meal (" + Philosopher.ODDS_OF_LEAVING_TABLE + ")\n"
+            + "  odds.talk=P               of talking after thinking (" + Philosopher.ODDS_OF_TALKING + ")\n"
+            + "  seed=N                    of the random numbers (64)\n"
+            + "  resources=NAME:N,...      condiments on the table (pepper:" + Monitor.MAX_PEPPERS + ")\n"
+            + "  log=MODE                  text, binary or off (text, off when sweeping)\n"
+            + "  log.file, log.capacity, metrics, record, replay, replay.patience: see\n"
+            + "                            EventLog, DiningMetrics and ScheduleLog\n"
+            + "  async.pending=N           asynchronous requests pending per monitor (" + Monitor.MAX_ASYNC_REQUESTS + ")\n"
+            + "  csv=PATH                  where a sweep writes its results (STDOUT)";
+
+    private final Map<String, String> values;
+
+    public final int philosophers;
+    public final String engine;
+    public final String arbitration;
+    public final String acquisition;
+    public final String threads;
+    public final int tables;
+    public final String placement;
+    public final String layout;
+    public final int partitions;
+    public final int steps;
+    public final long actionMillis;
+    public final double oddsOfInvitingFriend;
+    public final double oddsOfLeavingTable;
+    public final double oddsOfTalking;
+    public final String resources;
+    public final long seed;
+
+    /**
+     * Constructor, from one value per key
+     */
+    DiningConfig(Map<String, String> pmValues)
+    {
+        values = new LinkedHashMap<String, String>(pmValues);
+        philosophers = integer("philosophers", 1);
+        engine = oneOf("engine", "global", "striped", "lockfree", "partitioned");
+        arbitration = oneOf("arbitration", "priority", "fair");
+        acquisition = oneOf("acquisition", "park", "spin", "adaptive");
+        threads = oneOf("threads", "platform", "virtual", "tasks", "simulated");
+        tables = integer("tables", 1);
+        placement = values.get("placement");
+        layout = oneOf("layout", "packed", "padded", "striped");
+        partitions = integer("partitions", 0);
+        TablePlacement.forName(placement, philosophers);
+        steps = integer("steps", 0);
+        actionMillis = integer("action.ms", 0);
+        oddsOfInvitingFriend = odds("odds.invite");
+        oddsOfLeavingTable = odds("odds.leave");
+        oddsOfTalking = odds("odds.talk");
+        resources = values.get("resources");
+        ResourceAllocator.parse(resources);
+        try
+        {
+            seed = Long.parseLong(values.get("seed"));
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IllegalArgumentException("seed must be an integer, not \"" + values.get("seed") + "\"");
+        }
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    /**
+     * Reads the configuration from the command line, the file and the
+     * system properties
+     *
+     * @return One configuration per run, more than one for a sweep
+     * @throws IllegalArgumentException If a key or a value makes no sense
+     */
+    public static List<DiningConfig> load(String[] argv)
+    {
+        Map<String, String> mCommandLine = new LinkedHashMap<String, String>();
+        String[] astrPositional = {"philosophers", "engine", "threads"};
+        int iPositional = 0;
+        String strFile = System.getProperty("dining.config");
+        for(String strArg : argv)
+        {
+            if(!strArg.startsWith("--"))
+            {
+                if(iPositional == astrPositional.length)
+                    throw new IllegalArgumentException("\"" + strArg + "\" is one argument too many.");
+                mCommandLine.put(astrPositional[iPositional++], strArg);
+                continue;
+            }
+            int iEquals = strArg.indexOf('=');
+            if(iEquals < 0)
+                throw new IllegalArgumentException("\"" + strArg + "\" should look like --KEY=VALUE.");
+            String strKey = strArg.substring(2, iEquals);
+            if(strKey.equals("config"))
+                strFile = strArg.substring(iEquals + 1);
+            else
+                mCommandLine.put(known(strKey), strArg.substring(iEquals + 1));
+        }
+
+        Map<String, String> mValues = defaults();
+        Set<String> oGiven = new HashSet<String>();
+        if(strFile != null)
+        {
+            Properties oFile = new Properties();
+            try(InputStream oIn = new FileInputStream(strFile))
+            {
+                oFile.load(oIn);
+            }
+            catch(IOException e)
+            {
+                System.err.println("DiningConfig.load():");
+                DiningPhilosophers.reportException(e);
+                System.exit(1);
+            }
+            for(String strKey : oFile.stringPropertyNames())
+            {
+                mValues.put(known(strKey), oFile.getProperty(strKey).trim());
+                oGiven.add(strKey);
+            }
+        }
+        for(String strKey : mValues.keySet())
+        {
+            String strValue = System.getProperty("dining." + strKey);
+            if(strValue != null)
+            {
+                mValues.put(strKey, strValue);
+                oGiven.add(strKey);
+            }
+        }
+        mValues.putAll(mCommandLine);
+        oGiven.addAll(mCommandLine.keySet());
+
+        //Every combination of the swept values
+        List<Map<String, String>> aoGrid = new ArrayList<Map<String, String>>();
+        aoGrid.add(mValues);
+        for(String strKey : SWEEPABLE)
+        {
+            List<String> astrValues = expand(strKey, mValues.get(strKey));
+            List<Map<String, String>> aoNext = new ArrayList<Map<String, String>>();
+            for(Map<String, String> mRun : aoGrid)
+            {
+                for(String strValue : astrValues)
+                {
+                    Map<String, String> mCopy = new LinkedHashMap<String, String>(mRun);
+                    mCopy.put(strKey, strValue);
+                    aoNext.add(mCopy);
+                }
+            }
+            aoGrid = aoNext;
+        }
+        for(String strKey : new String[] {"log", "log.capacity", "metrics", "replay.patience"})
+        {
+            String strValue = mValues.get(strKey);
+            if(strValue != null && (strValue.indexOf(',') >= 0 || strValue.indexOf("..") >= 0))
+                throw new IllegalArgumentException(strKey + " can not be swept.");
+        }
+
+        List<DiningConfig> aoRuns = new ArrayList<DiningConfig>();
+        for(Map<String, String> mRun : aoGrid)
+        {
+            //A sweep's output is its CSV, not what the philosophers say
+            if(aoGrid.size() > 1 && !oGiven.contains("log"))
+                mRun.put("log", "off");
+            aoRuns.add(new DiningConfig(mRun));
+        }
+        return aoRuns;
+    }
+
+    private static Map<String, String> defaults()
+    {
+        Map<String, String> mDefaults = new LinkedHashMap<String, String>();
+        mDefaults.put("philosophers", String.valueOf(DiningPhilosophers.DEFAULT_NUMBER_OF_PHILOSOPHERS));
+        mDefaults.put("engine", DiningPhilosophers.DEFAULT_ENGINE);
+        mDefaults.put("arbitration", "priority");
+        mDefaults.put("acquisition", "park");
+        mDefaults.put("threads", "platform");
+        mDefaults.put("tables", "1");
+        mDefaults.put("placement", "blocks");
+        mDefaults.put("layout", "striped");
+        mDefaults.put("partitions", "0");
+        mDefaults.put("steps", String.valueOf(DiningPhilosophers.DINING_STEPS));
+        mDefaults.put("action.ms", String.valueOf(Philosopher.TIME_TO_WASTE));
+        mDefaults.put("odds.invite", String.valueOf(Philosopher.ODDS_OF_INVITING_FRIEND));
+        mDefaults.put("odds.leave", String.valueOf(Philosopher.ODDS_OF_LEAVING_TABLE));
+        mDefaults.put("odds.talk", String.valueOf(Philosopher.ODDS_OF_TALKING));
+        mDefaults.put("resources", "pepper:" + Monitor.MAX_PEPPERS);
+        mDefaults.put("seed", "64");
+        for(String strKey : PER_JVM)
+        {
+            mDefaults.putIfAbsent(strKey, null);
+        }
+        mDefaults.put("log", "text");
+        return mDefaults;
+    }
+
+    private static String known(String pstrKey)
+    {
+        for(String strKey : SWEEPABLE)
+        {
+            if(strKey.equals(pstrKey))
+                return pstrKey;
+        }
+        for(String strKey : PER_JVM)
+        {
+            if(strKey.equals(pstrKey))
+                return pstrKey;
+        }
+        throw new IllegalArgumentException("\"" + pstrKey + "\" is not a known key.");
+    }
+
+    /**
+     * The values of a sweepable key: a list of values and integer ranges
+     */
+    static List<String> expand(String pstrKey, String pstrValue)
+    {
+        List<String> astrValues = new ArrayList<String>();
+        for(String strItem : pstrValue.split(","))
+        {
+            strItem = strItem.trim();
+            int iDots = strItem.indexOf("..");
+            if(iDots < 0)
+            {
+                astrValues.add(strItem);
+                continue;
+            }
+            try
+            {
+                long lFrom = Long.parseLong(strItem.substring(0, iDots));
+                String strRest = strItem.substring(iDots + 2);
+                int iTimes = strRest.indexOf('x');
+                int iPlus = strRest.indexOf('+');
+                if(iTimes >= 0)
+                {
+                    long lTo = Long.parseLong(strRest.substring(0, iTimes));
+                    long lFactor = Long.parseLong(strRest.substring(iTimes + 1));
+                    if(lFrom < 1 || lFactor < 2)
+                        throw new NumberFormatException();
+                    for(long v = lFrom; v <= lTo; v *= lFactor)
+                    {
+                        astrValues.add(String.valueOf(v));
+                    }
+                }
+                else
+                {
+                    long lTo = Long.parseLong((iPlus >= 0) ? strRest.substring(0, iPlus) : strRest);
+                    long lStep = (iPlus >= 0) ? Long.parseLong(strRest.substring(iPlus + 1)) : 1;
+                    if(lStep < 1)
+                        throw new NumberFormatException();
+                    for(long v = lFrom; v <= lTo; v += lStep)
+                    {
+                        astrValues.add(String.valueOf(v));
+                    }
+                }
+            }
+            catch(NumberFormatException e)
+            {
+                throw new IllegalArgumentException("\"" + strItem + "\" is not a range of " + pstrKey
+                        + ": try FROM..TO, FROM..TOxFACTOR or FROM..TO+STEP.");
+            }
+        }
+        if(astrValues.isEmpty())
+            throw new IllegalArgumentException("\"" + pstrValue + "\" gives no value of " + pstrKey + ".");
+        return astrValues;
+    }
+
+    private int integer(String pstrKey, int piMin)
+    {
+        try
+        {
+            int iValue = Integer.parseInt(values.get(pstrKey));
+            if(iValue >= piMin)
+                return iValue;
+        }
+        catch(NumberFormatException e)
+        {
+        }
+        throw new IllegalArgumentException(pstrKey + " must be an integer of at least " + piMin
+                + ", not \"" + values.get(pstrKey) + "\".");
+    }
+
+    private double odds(String pstrKey)
+    {
+        try
+        {
+            double dValue = Double.parseDouble(values.get(pstrKey));
+            if(dValue >= 0 && dValue <= 1)
+                return dValue;
+        }
+        catch(NumberFormatException e)
+        {
+        }
+        throw new IllegalArgumentException(pstrKey + " must be between 0 and 1, not \"" + values.get(pstrKey) + "\".");
+    }
+
+    private String oneOf(String pstrKey, String... pastrChoices)
+    {
+        String strValue = values.get(pstrKey);
+        for(String strChoice : pastrChoices)
+        {
+            if(strChoice.equals(strValue))
+                return strValue;
+        }
+        throw new IllegalArgumentException("\"" + strValue + "\" is not a known " + pstrKey
+                + ": try " + String.join(", ", pastrChoices) + ".");
+    }
+
+    /**
+     * @return The value of a key, null if it has none
+     */
+    public String get(String pstrKey)
+    {
+        return values.get(pstrKey);
+    }
+
+    /**
+     * Publishes every value as a -Ddining.KEY system property, which is
+     * where the rest of the program (EventLog, DiningMetrics, the monitors'
+     * condiments and tables...) reads them from. Must be called before the
+     * run starts, and before the classes read once per JVM are first used.
+     */
+    public void install()
+    {
+        for(Map.Entry<String, String> oValue : values.entrySet())
+        {
+            if(oValue.getValue() != null)
+                System.setProperty("dining." + oValue.getKey(), oValue.getValue());
+        }
+    }
+}
+
+// EOF
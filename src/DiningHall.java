@@ -0,0 +1,319 @@
+
+import common.BaseThread;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class DiningHall
+ * Several independent tables, each with its own monitor (of any engine),
+ * behind the Monitor interface. Philosophers never interact across tables:
+ * a table's chopsticks, pepper shakers, talking and napping are its own, so
+ * the tables do not contend with each other at all.
+ *
+ * The initial philosophers are seated by a TablePlacement; friends who join
+ * later always go to the least loaded table.
+ *
+ * Tables are locked separately: there is no one order of events to record
+ * (no recordable()). Continuations are handed to the tables, if every one
+ * of them takes them.
+ */
+public class DiningHall extends Monitor {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    private final Monitor[] tables;
+
+    /**
+     * The table of each TID, kept after they leave. A TID handed out again
+     * is the table of its latest philosopher: the report goes by the table
+     * in each one's stats instead (see DiningMetrics.seated()). Replaced
+     * when it grows, while holding seating.
+     */
+    private volatile int[] tableOf;
+
+    //Philosophers at each table right now
+    private final int[] loads;
+    //The highest TID that sat down, tableOf is meaningless past it
+    private int lastTID;
+    private final ReentrantLock seating = new ReentrantLock();
+
+    private final long startNanos = System.nanoTime();
+
+    //Hands each continuation to the table of the philosopher
+    private final Continuations continuations = new Continuations()
+    {
+        public boolean pickUp(int piTID, Runnable poThen)
+        {
+            return tableOf(piTID).continuations().pickUp(piTID, poThen);
+        }
+
+        public boolean leaveTable(int threadID, Runnable poThen)
+        {
+            int table = tableOf[threadID];
+            if(!tables[table].continuations().leaveTable(threadID, () -> {
+                left(table);
+                poThen.run();
+            }))
+                return false;
+            left(table);
+            return true;
+        }
+    };
+
+    /**
+     * Constructor: seats philosophers 1 to piNumberOfPhilosophers at
+     * piTables tables of the given engine
+     */
+    public DiningHall(String pstrEngine, int piNumberOfPhilosophers, int piTables,
+            TablePlacement poPlacement)
+    {
+        nbPhil = piNumberOfPhilosophers;
+        loads = new int[piTables];
+        tableOf = new int[piNumberOfPhilosophers + 1];
+        lastTID = piNumberOfPhilosophers;
+        for(int tid = 1; tid <= piNumberOfPhilosophers; tid++)
+        {
+            int table = poPlacement.place(tid, loads);
+            tableOf[tid] = table;
+            DiningMetrics.seated(tid, table);
+            loads[table]++;
+        }
+
+        int[][] aaiTIDs = new int[piTables][];
+        int[] aiNext = new int[piTables];
+        for(int table = 0; table < piTables; table++)
+        {
+            aaiTIDs[table] = new int[loads[table]];
+        }
+        for(int tid = 1; tid <= piNumberOfPhilosophers; tid++)
+        {
+            int table = tableOf[tid];
+            aaiTIDs[table][aiNext[table]++] = tid;
+        }
+
+        tables = new Monitor[piTables];
+        for(int table = 0; table < piTables; table++)
+        {
+            tables[table] = DiningPhilosophers.createTable(pstrEngine, aaiTIDs[table]);
+        }
+    }
+
+    /*
+	 * -------------------------------
+	 * User-defined monitor procedures
+	 * -------------------------------
+     */
+    private Monitor tableOf(int piTID)
+    {
+        return tables[tableOf[piTID]];
+    }
+
+    /**
+     * @return The TID of the philosopher the calling thread carries
+     */
+    private static int callerTID()
+    {
+        BaseThread oCaller = BaseThread.current();
+        if(oCaller == null)
+            throw new IllegalStateException("Only a philosopher may talk or nap without giving their TID: "
+                    + Thread.currentThread() + " is not carrying one");
+        return oCaller.getTID();
+    }
+
+    /**
+     * @return The tables' continuations, if every table has some
+     */
+    @Override
+    public Continuations continuations()
+    {
+        for(Monitor oTable : tables)
+        {
+            if(oTable.continuations() == null)
+                return null;
+        }
+        return continuations;
+    }
+
+    @Override
+    public void pickUp(final int piTID)
+    {
+        tableOf(piTID).pickUp(piTID);
+    }
+
+    @Override
+    protected void withdraw(final int piTID)
+    {
+        tableOf(piTID).withdraw(piTID);
+    }
+
+    @Override
+    public void putDown(final int piTID)
+    {
+        tableOf(piTID).putDown(piTID);
+    }
+
+    /**
+     * Tables talk separately: the hall asks the table of the philosopher
+     * the calling thread carries
+     */
+    @Override
+    public void requestTalk()
+    {
+        requestTalk(callerTID());
+    }
+
+    @Override
+    public void requestTalk(final int piTID)
+    {
+        tableOf(piTID).requestTalk(piTID);
+    }
+
+    @Override
+    public boolean requestTalk(final int piTID, final Runnable poThen)
+    {
+        return tableOf(piTID).requestTalk(piTID, poThen);
+    }
+
+    @Override
+    public void endTalk()
+    {
+        endTalk(callerTID());
+    }
+
+    @Override
+    public void endTalk(final int piTID)
+    {
+        tableOf(piTID).endTalk(piTID);
+    }
+
+    @Override
+    public void requestNap()
+    {
+        requestNap(callerTID());
+    }
+
+    @Override
+    public void requestNap(final int piTID)
+    {
+        tableOf(piTID).requestNap(piTID);
+    }
+
+    @Override
+    public boolean requestNap(final int piTID, final Runnable poThen)
+    {
+        return tableOf(piTID).requestNap(piTID, poThen);
+    }
+
+    @Override
+    public void endNap()
+    {
+        endNap(callerTID());
+    }
+
+    @Override
+    public void endNap(final int piTID)
+    {
+        tableOf(piTID).endNap(piTID);
+    }
+
+    /**
+     * The friend sits at the least loaded table, next to their host if that
+     * is the host's table
+     */
+    @Override
+    public void joinTable(int threadId, int piHostTID)
+    {
+        int table;
+        seating.lock();
+        try
+        {
+            table = TablePlacement.LEAST_LOADED.place(threadId, loads);
+            if(threadId >= tableOf.length)
+                tableOf = Arrays.copyOf(tableOf, Math.max(threadId + 1, tableOf.length * 2));
+            tableOf[threadId] = table;
+            DiningMetrics.seated(threadId, table);
+            lastTID = Math.max(lastTID, threadId);
+            loads[table]++;
+            nbPhil++;
+        }
+        finally
+        {
+            seating.unlock();
+        }
+        tables[table].joinTable(threadId, piHostTID);
+    }
+
+    @Override
+    public void leaveTable(int threadID)
+    {
+        int table = tableOf[threadID];
+        tables[table].leaveTable(threadID);
+        left(table);
+    }
+
+    private void left(int table)
+    {
+        seating.lock();
+        loads[table]--;
+        nbPhil--;
+        seating.unlock();
+    }
+
+    /**
+     * Prints, for each table, who sits there and how much they ate (from
+     * DiningMetrics), then the whole hall
+     */
+    public void print(PrintStream poOut)
+    {
+        int[] aiSeated = new int[tables.length];
+        int[] aiDiners = new int[tables.length];
+        long[] alMeals = new long[tables.length];
+        double[] adHungry = new double[tables.length];
+        seating.lock();
+        int[] aiTableOf = tableOf;
+        int iLastTID = lastTID;
+        System.arraycopy(loads, 0, aiSeated, 0, loads.length);
+        seating.unlock();
+        if(!DiningMetrics.ENABLED)
+        {
+            //No stats, diners whose TID was handed out again are missed
+            for(int tid = 1; tid <= iLastTID; tid++)
+            {
+                aiDiners[aiTableOf[tid]]++;
+            }
+        }
+        for(PhilosopherStats oStats : DiningMetrics.snapshot())
+        {
+            if(oStats.table < 0)
+                continue;
+            aiDiners[oStats.table]++;
+            alMeals[oStats.table] += oStats.meals;
+            adHungry[oStats.table] += oStats.hungryNanos / 1e6;
+        }
+
+        double dSeconds = (System.nanoTime() - startNanos) / 1e9;
+        poOut.printf("%8s %8s %8s %10s %12s %12s%n",
+                "table", "seated", "diners", "meals", "meals/s", "hungry(ms)");
+        int iSeated = 0;
+        int iDiners = 0;
+        long lMeals = 0;
+        double dHungry = 0;
+        for(int table = 0; table < tables.length; table++)
+        {
+            poOut.printf("%8d %8d %8d %10d %12.1f %12.1f%n", table, aiSeated[table], aiDiners[table],
+                    alMeals[table], alMeals[table] / dSeconds, adHungry[table]);
+            iSeated += aiSeated[table];
+            iDiners += aiDiners[table];
+            lMeals += alMeals[table];
+            dHungry += adHungry[table];
+        }
+        poOut.printf("%8s %8d %8d %10d %12.1f %12.1f%n", "all", iSeated, iDiners,
+                lMeals, lMeals / dSeconds, dHungry);
+    }
+}
+
+// EOF
@@ -0,0 +1,415 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Class DiningMetrics
+ * Per-philosopher counters (a PhilosopherStats per TID) and latency
+ * histograms of the waits, filled in by the monitors as the dinner goes on.
+ *
+ * Cheap enough to leave on: a philosopher who gets what they asked for right
+ * away only costs a counter increment (meals). The clock is read, and the
+ * histograms touched, only on the paths that block anyway. Each counter has
+ * one writer at a time (the philosopher, or whoever holds the lock of their
+ * seat), so no lock or atomic is needed; live readers may see slightly
+ * stale values.
+ *
+ * A philosopher who leaves for good gives their TID back (see retire()):
+ * their stats are kept apart, and whoever gets the TID next starts from
+ * nothing.
+ *
+ * -Ddining.metrics=off turns every method into a no-op.
+ */
+public final class DiningMetrics {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    static final boolean ENABLED = !System.getProperty("dining.metrics", "on").equals("off");
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final int STRIPES = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * PhilosopherStats by TID, in chunks that are only ever added
+     */
+    private static volatile PhilosopherStats[][] saaoStats = new PhilosopherStats[0][];
+    private static final ReentrantLock soGrow = new ReentrantLock();
+
+    /**
+     * The stats of those who left, whose TID may be someone else's now.
+     * Guarded by soGrow.
+     */
+    private static final ArrayList<PhilosopherStats> soRetired = new ArrayList<PhilosopherStats>();
+
+    private static final ConcurrentLatencyHistogram soHungry = new ConcurrentLatencyHistogram(STRIPES);
+    private static final ConcurrentLatencyHistogram soPepper = new ConcurrentLatencyHistogram(STRIPES);
+    private static final ConcurrentLatencyHistogram soTalk = new ConcurrentLatencyHistogram(STRIPES);
+    private static final ConcurrentLatencyHistogram soNap = new ConcurrentLatencyHistogram(STRIPES);
+
+    private DiningMetrics()
+    {
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    /**
+     * @return The time to pass to one of the wait methods below, once the
+     * wait is over
+     */
+    public static long now()
+    {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * The stats of a philosopher, created on first use
+     */
+    static PhilosopherStats statsFor(int piTID)
+    {
+        PhilosopherStats[][] chunks = saaoStats;
+        int chunk = piTID >>> CHUNK_BITS;
+        if(chunk < chunks.length)
+        {
+            PhilosopherStats oStats = chunks[chunk][piTID & CHUNK_MASK];
+            if(oStats != null)
+                return oStats;
+        }
+
+        soGrow.lock();
+        try
+        {
+            chunks = saaoStats;
+            if(chunk >= chunks.length)
+            {
+                chunks = Arrays.copyOf(chunks, chunk + 1);
+                for(int i = saaoStats.length; i <= chunk; i++)
+                {
+                    chunks[i] = new PhilosopherStats[1 << CHUNK_BITS];
+                }
+                saaoStats = chunks;
+            }
+            PhilosopherStats oStats = chunks[chunk][piTID & CHUNK_MASK];
+            if(oStats == null)
+            {
+                oStats = new PhilosopherStats(piTID);
+                chunks[chunk][piTID & CHUNK_MASK] = oStats;
+            }
+            return oStats;
+        }
+        finally
+        {
+            soGrow.unlock();
+        }
+    }
+
+    /**
+     * The philosopher with the given TID left for good, and their TID may
+     * be handed out again: their stats are kept apart, and the TID's next
+     * philosopher gets new ones, as its next generation. Called before the
+     * TID is given back.
+     */
+    public static void retire(int piTID)
+    {
+        if(!ENABLED || piTID < 1)
+            return;
+        soGrow.lock();
+        try
+        {
+            PhilosopherStats[][] chunks = saaoStats;
+            int chunk = piTID >>> CHUNK_BITS;
+            if(chunk >= chunks.length || chunks[chunk][piTID & CHUNK_MASK] == null)
+                return;
+            PhilosopherStats oStats = chunks[chunk][piTID & CHUNK_MASK];
+            soRetired.add(oStats);
+            chunks[chunk][piTID & CHUNK_MASK] = new PhilosopherStats(piTID, oStats.generation + 1);
+        }
+        finally
+        {
+            soGrow.unlock();
+        }
+    }
+
+    /**
+     * The philosopher with the given TID sat down at the given table of a
+     * DiningHall
+     */
+    public static void seated(int piTID, int piTable)
+    {
+        if(!ENABLED || piTID < 1)
+            return;
+        statsFor(piTID).table = piTable;
+    }
+
+    public static void meal(int piTID)
+    {
+        if(!ENABLED || piTID < 1)
+            return;
+        statsFor(piTID).meals++;
+    }
+
+    public static void oneChopstick(int piTID)
+    {
+        if(!ENABLED || piTID < 1)
+            return;
+        statsFor(piTID).oneChopstickHolds++;
+    }
+
+    /**
+     * The philosopher waited in pickUp() for their chopsticks since plSince
+     */
+    public static void hungry(int piTID, long plSince)
+    {
+        if(!ENABLED || piTID < 1)
+            return;
+        long lWaited = System.nanoTime() - plSince;
+        statsFor(piTID).hungryNanos += lWaited;
+        soHungry.record(piTID, lWaited);
+    }
+
+    public static void pepper(int piTID, long plSince)
+    {
+        if(!ENABLED || piTID < 1)
+            return;
+        long lWaited = System.nanoTime() - plSince;
+        statsFor(piTID).pepperNanos += lWaited;
+        soPepper.record(piTID, lWaited);
+    }
+
+    public static void talkWait(int piTID, long plSince)
+    {
+        if(!ENABLED || piTID < 1)
+            return;
+        long lWaited = System.nanoTime() - plSince;
+        statsFor(piTID).talkWaitNanos += lWaited;
+        soTalk.record(piTID, lWaited);
+    }
+
+    public static void napWait(int piTID, long plSince)
+    {
+        if(!ENABLED || piTID < 1)
+            return;
+        long lWaited = System.nanoTime() - plSince;
+        statsFor(piTID).napWaitNanos += lWaited;
+        soNap.record(piTID, lWaited);
+    }
+
+    /**
+     * @return A copy of the stats of every philosopher seen so far, by TID,
+     * then generation
+     */
+    public static PhilosopherStats[] snapshot()
+    {
+        ArrayList<PhilosopherStats> oSnapshot = new ArrayList<PhilosopherStats>();
+        soGrow.lock();
+        try
+        {
+            for(PhilosopherStats oStats : soRetired)
+            {
+                oSnapshot.add(copy(oStats));
+            }
+        }
+        finally
+        {
+            soGrow.unlock();
+        }
+        for(PhilosopherStats[] aoChunk : saaoStats)
+        {
+            for(PhilosopherStats oStats : aoChunk)
+            {
+                //Skipped: a TID given back, and not handed out again yet
+                if(oStats == null || (oStats.generation > 0 && isEmpty(oStats)))
+                    continue;
+                oSnapshot.add(copy(oStats));
+            }
+        }
+        oSnapshot.sort((a, b) -> (a.tid != b.tid)
+                ? Integer.compare(a.tid, b.tid) : Integer.compare(a.generation, b.generation));
+        return oSnapshot.toArray(new PhilosopherStats[0]);
+    }
+
+    private static PhilosopherStats copy(PhilosopherStats poStats)
+    {
+        PhilosopherStats oCopy = new PhilosopherStats(poStats.tid, poStats.generation);
+        oCopy.table = poStats.table;
+        oCopy.meals = poStats.meals;
+        oCopy.hungryNanos = poStats.hungryNanos;
+        oCopy.pepperNanos = poStats.pepperNanos;
+        oCopy.talkWaitNanos = poStats.talkWaitNanos;
+        oCopy.napWaitNanos = poStats.napWaitNanos;
+        oCopy.oneChopstickHolds = poStats.oneChopstickHolds;
+        return oCopy;
+    }
+
+    private static boolean isEmpty(PhilosopherStats poStats)
+    {
+        return poStats.table < 0 && poStats.meals == 0 && poStats.hungryNanos == 0
+                && poStats.pepperNanos == 0 && poStats.talkWaitNanos == 0
+                && poStats.napWaitNanos == 0 && poStats.oneChopstickHolds == 0;
+    }
+
+    /**
+     * @return How long philosophers waited for their chopsticks so far
+     */
+    public static LatencyHistogram hungryWaits()
+    {
+        return soHungry.snapshot();
+    }
+
+    /**
+     * Starts over from nothing, between two dinners (by DiningSweep): while
+     * nobody is at the table.
+     */
+    public static void reset()
+    {
+        soGrow.lock();
+        saaoStats = new PhilosopherStats[0][];
+        soRetired.clear();
+        soGrow.unlock();
+        soHungry.reset();
+        soPepper.reset();
+        soTalk.reset();
+        soNap.reset();
+    }
+
+    /**
+     * Prints every philosopher's stats, then the distribution of each kind
+     * of wait
+     */
+    public static void print(PrintStream poOut)
+    {
+        if(!ENABLED)
+            return;
+        PhilosopherStats.print(poOut, snapshot());
+        print(poOut, "hungry", soHungry.snapshot());
+        print(poOut, "pepper", soPepper.snapshot());
+        print(poOut, "talk", soTalk.snapshot());
+        print(poOut, "nap", soNap.snapshot());
+    }
+
+    private static void print(PrintStream poOut, String pstrWait, LatencyHistogram poWaits)
+    {
+        poOut.printf("%-6s waits: %8d  p50 %10.1f us  p99 %10.1f us  p99.9 %10.1f us  max %10.1f us%n",
+                pstrWait, poWaits.getCount(),
+                poWaits.percentile(50) / 1e3, poWaits.percentile(99) / 1e3,
+                poWaits.percentile(99.9) / 1e3, poWaits.getMax() / 1e3);
+    }
+
+    private static double[] percentiles(ConcurrentLatencyHistogram poWaits)
+    {
+        LatencyHistogram oSnapshot = poWaits.snapshot();
+        return new double[] {
+            oSnapshot.percentile(50) / 1e3,
+            oSnapshot.percentile(99) / 1e3,
+            oSnapshot.percentile(99.9) / 1e3
+        };
+    }
+
+    /**
+     * Makes the metrics visible through JMX, as dining:type=Metrics
+     */
+    public static void register()
+    {
+        if(!ENABLED)
+            return;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Bean(), new ObjectName("dining:type=Metrics"));
+        }
+        catch(JMException e)
+        {
+            System.err.println("DiningMetrics.register():");
+            DiningPhilosophers.reportException(e);
+        }
+    }
+
+    private static final class Bean implements DiningMetricsMXBean
+    {
+        private long sum(java.util.function.ToLongFunction<PhilosopherStats> poField)
+        {
+            long lSum = 0;
+            for(PhilosopherStats oStats : snapshot())
+            {
+                lSum += poField.applyAsLong(oStats);
+            }
+            return lSum;
+        }
+
+        public int getPhilosophers()
+        {
+            return snapshot().length;
+        }
+
+        public long getMeals()
+        {
+            return sum(s -> s.meals);
+        }
+
+        public long getOneChopstickHolds()
+        {
+            return sum(s -> s.oneChopstickHolds);
+        }
+
+        public long getHungryWaits()
+        {
+            return soHungry.snapshot().getCount();
+        }
+
+        public double[] getHungryWaitPercentiles()
+        {
+            return percentiles(soHungry);
+        }
+
+        public long getPepperWaits()
+        {
+            return soPepper.snapshot().getCount();
+        }
+
+        public double[] getPepperWaitPercentiles()
+        {
+            return percentiles(soPepper);
+        }
+
+        public long getTalkWaits()
+        {
+            return soTalk.snapshot().getCount();
+        }
+
+        public double[] getTalkWaitPercentiles()
+        {
+            return percentiles(soTalk);
+        }
+
+        public long getNapWaits()
+        {
+            return soNap.snapshot().getCount();
+        }
+
+        public double[] getNapWaitPercentiles()
+        {
+            return percentiles(soNap);
+        }
+
+        public String report()
+        {
+            ByteArrayOutputStream oReport = new ByteArrayOutputStream();
+            print(new PrintStream(oReport, true));
+            return oReport.toString();
+        }
+    }
+}
+
+// EOF
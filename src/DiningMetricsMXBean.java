@@ -0,0 +1,38 @@
+
+/**
+ * Interface DiningMetricsMXBean
+ * What DiningMetrics shows through JMX while the dinner goes on, under
+ * dining:type=Metrics. Percentiles are {p50, p99, p99.9} in microseconds,
+ * over the waits that actually blocked.
+ */
+public interface DiningMetricsMXBean {
+
+    int getPhilosophers();
+
+    long getMeals();
+
+    long getOneChopstickHolds();
+
+    long getHungryWaits();
+
+    double[] getHungryWaitPercentiles();
+
+    long getPepperWaits();
+
+    double[] getPepperWaitPercentiles();
+
+    long getTalkWaits();
+
+    double[] getTalkWaitPercentiles();
+
+    long getNapWaits();
+
+    double[] getNapWaitPercentiles();
+
+    /**
+     * @return The same table as the one printed at the end of the dinner
+     */
+    String report();
+}
+
+// EOF
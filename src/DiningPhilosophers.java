@@ -1,4 +1,7 @@
 
+import common.BaseThread;
+import java.util.List;
+
 /**
  * Class DiningPhilosophers
  * The main starter.
@@ -24,11 +27,35 @@ public class DiningPhilosophers {
      */
     public static final int DINING_STEPS = 10;
 
+    /**
+     * Arbitration engine used unless another one is given on the command
+     * line: "global" (one lock for the whole table), "striped" (per-seat
+     * lock stripes), "lockfree" (CAS on the chopsticks) or "partitioned"
+     * (a lock per arc of the table)
+     */
+    public static final String DEFAULT_ENGINE = "global";
+
+    private static final String USAGE =
+            "Usage: java DiningPhilosophers [NUMBER_OF_PHILOSOPHERS [global|striped|lockfree|partitioned [platform|virtual|tasks|simulated]]]\n"
+            + "                               [--config=FILE] [--KEY=VALUE...]\n"
+            + "Keys (also -Ddining.KEY=VALUE, or KEY=VALUE in the file):\n" + DiningConfig.KEYS;
+
     /**
      * Our shared monitor for the philosphers to consult
      */
     public static Monitor soMonitor = null;
 
+    /**
+     * What the current dinner is run with
+     */
+    public static DiningConfig soConfig = null;
+
+    /**
+     * Whether the philosophers' run() loops are carried by virtual threads
+     * instead of the platform threads they extend
+     */
+    public static boolean sbVirtualThreads = false;
+
     /*
 	 * -------
 	 * Methods
@@ -39,30 +66,47 @@ public class DiningPhilosophers {
      */
     public static void main(String[] argv) {
         try {
-            int iPhilosophers = getNumberOfPhilosophersFromCommandLine(argv);
-
-            // Make the monitor aware of how many philosophers there are
-            soMonitor = new Monitor(iPhilosophers);
-
-            // Space for all the philosophers
-            Philosopher aoPhilosophers[] = new Philosopher[iPhilosophers];
-
-            // Let 'em sit down
-            System.out.println(
-                    iPhilosophers
-                    + " philosopher(s) came in for a dinner."
-            );
-            for (int j = 0; j < iPhilosophers; j++) {
-                aoPhilosophers[j] = new Philosopher();
-                aoPhilosophers[j].start();
+            //Task 4: Everything the dinner is run with, from the command
+            //line, a file and the system properties
+            List<DiningConfig> aoRuns = null;
+            try {
+                aoRuns = DiningConfig.load(argv);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage() + "\n\n" + USAGE);
+                System.exit(1);
             }
 
-            // Main waits for all its children to die...
-            // I mean, philosophers to finish their dinner.
-            for (int j = 0; j < iPhilosophers; j++) {
-                aoPhilosophers[j].join();
+            // Several values of something: run them all, report as CSV
+            if (aoRuns.size() > 1) {
+                DiningSweep.run(aoRuns);
+                return;
             }
+            DiningConfig oConfig = aoRuns.get(0);
+            oConfig.install();
+
+            // No threads at all: the whole dinner on a virtual clock
+            if (oConfig.threads.equals("simulated")) {
+                DiningSimulation.simulate(oConfig);
+                return;
+            }
+
+            // Who waited for what, live over JMX and printed at the end
+            DiningMetrics.register();
+
+            // -Ddining.record/replay: the order the monitor let everyone eat in
+            ScheduleLog oSchedule = ScheduleLog.fromProperties();
 
+            dine(oConfig, oSchedule);
+
+            // Everything the philosophers said must be out before we say goodbye
+            EventLog.close();
+            if (oSchedule != null) {
+                oSchedule.close(System.out);
+            }
+            DiningMetrics.print(System.out);
+            if (soMonitor instanceof DiningHall && DiningMetrics.ENABLED) {
+                ((DiningHall) soMonitor).print(System.out);
+            }
             System.out.println("All philosophers have left. System terminates normally.");
         } catch (InterruptedException e) {
             System.err.println("main():");
@@ -70,27 +114,136 @@ public class DiningPhilosophers {
             System.exit(1);
         }
     } // main()
+
+    /**
+     * Runs one dinner on threads, until every philosopher (and friend) has
+     * left
+     *
+     * @param poSchedule Where to record or replay the schedule, or null
+     * @return How long the dinner took, in nanoseconds
+     */
+    static long dine(DiningConfig poConfig, ScheduleLog poSchedule) throws InterruptedException {
+        int iPhilosophers = poConfig.philosophers;
+        soConfig = poConfig;
+
+        // Each philosopher draws from their own stream, split off this seed
+        BaseThread.setRandomSeed(poConfig.seed);
+
+        // Make the monitor aware of how many philosophers there are
+        soMonitor = createMonitor(poConfig.engine, iPhilosophers);
+        sbVirtualThreads = poConfig.threads.equals("virtual");
+
+        if (poSchedule != null) {
+            // Continuations wait for the next in the schedule without patience
+            if (poConfig.threads.equals("tasks") && poSchedule.isReplaying()) {
+                System.out.println("Tasks can not replay a schedule: record it with them, replay it on threads.\n\n" + USAGE);
+                System.exit(1);
+            }
+            // Only the global engine, at a single table, eats in one order
+            Recordable oRecordable = soMonitor.recordable();
+            if (oRecordable == null) {
+                System.out.println("The " + poConfig.engine + " engine" + (poConfig.tables > 1 ? " at " + poConfig.tables + " tables" : "")
+                        + " can not record or replay its schedule: use the global engine, at a single table.\n\n" + USAGE);
+                System.exit(1);
+            }
+            oRecordable.schedule(poSchedule);
+        }
+
+        // Space for all the philosophers, and the threads carrying them
+        Philosopher aoPhilosophers[] = new Philosopher[iPhilosophers];
+        Thread aoThreads[] = new Thread[iPhilosophers];
+
+        // Let 'em sit down
+        long lStart = System.nanoTime();
+        EventLog.log(EventLog.CAME_IN, 0, EventLog.NO_SEAT, iPhilosophers);
+        // Everyone gets their TID (and so their seat) before anyone can
+        // invite a friend
+        for (int j = 0; j < iPhilosophers; j++) {
+            aoPhilosophers[j] = new Philosopher();
+        }
+
+        // No thread per philosopher: steps as tasks on a work-stealing pool
+        if (poConfig.threads.equals("tasks")) {
+            new DiningTasks(soMonitor, poConfig).dine(aoPhilosophers);
+            return System.nanoTime() - lStart;
+        }
+
+        for (int j = 0; j < iPhilosophers; j++) {
+            aoThreads[j] = launch(aoPhilosophers[j]);
+        }
+
+        // Main waits for all its children to die...
+        // I mean, philosophers to finish their dinner.
+        for (int j = 0; j < iPhilosophers; j++) {
+            aoThreads[j].join();
+        }
+        return System.nanoTime() - lStart;
+    }
+
+    /**
+     * Starts a philosopher's run() loop, either on the philosopher's own
+     * platform thread or on a new virtual thread.
+     *
+     * @return The thread to join() to wait for the philosopher to be done
+     */
+    public static Thread launch(Philosopher poPhilosopher)
+    {
+        if(sbVirtualThreads)
+            return Thread.ofVirtual().start(poPhilosopher::carry);
+        
+        poPhilosopher.start();
+        return poPhilosopher;
+    }
     
-    //Task 4
-    //TODO: Print an informative error message when unable to parse to int
-    private static int getNumberOfPhilosophersFromCommandLine(String[] argv)
+    /**
+     * Builds the monitor for the requested arbitration engine. With
+     * -Ddining.tables=N (N > 1), that is a DiningHall of N such tables,
+     * seated according to -Ddining.placement=blocks|roundrobin|leastloaded.
+     */
+    static Monitor createMonitor(String pstrEngine, int piPhilosophers)
     {
-        int result = DEFAULT_NUMBER_OF_PHILOSOPHERS;
-        if(argv.length > 0)
+        int iTables = Integer.getInteger("dining.tables", 1);
+        if(iTables > 1)
         {
-            try
-            {
-                result = Integer.parseInt(argv[0]);
-                if(result < 1)
-                    throw new NumberFormatException();
-            }
-            catch (NumberFormatException e)
-            {
-                System.out.println("\"" + argv[0] + "\" is not a positive decimal integer.\n\nUsage: java DiningPhilosophers [NUMBER_OF_PHILOSOPHERS]");
+            return new DiningHall(pstrEngine, piPhilosophers, iTables,
+                    TablePlacement.forName(System.getProperty("dining.placement", "blocks"), piPhilosophers));
+        }
+        return createTable(pstrEngine, Monitor.firstTIDs(piPhilosophers));
+    }
+
+    /**
+     * Builds one table of the requested arbitration engine, for the
+     * philosophers with the given TIDs
+     */
+    static Monitor createTable(String pstrEngine, int[] paiTIDs)
+    {
+        //Task 3: Only the global engine can hand out chopsticks fairly
+        if(System.getProperty("dining.arbitration", "priority").equals("fair") && !pstrEngine.equals("global"))
+        {
+            System.out.println("The " + pstrEngine + " engine only arbitrates by priority.\n\n" + USAGE);
+            System.exit(1);
+        }
+        //Only the global engine can hand chopsticks to a continuation
+        if(System.getProperty("dining.threads", "platform").equals("tasks") && !pstrEngine.equals("global"))
+        {
+            System.out.println("The " + pstrEngine + " engine can not run philosophers as tasks.\n\n" + USAGE);
+            System.exit(1);
+        }
+        switch(pstrEngine)
+        {
+            case "global":
+                return new Monitor(paiTIDs);
+            case "striped":
+                return new StripedMonitor(paiTIDs);
+            case "lockfree":
+                return new LockFreeMonitor(paiTIDs);
+            case "partitioned":
+                return new PartitionedMonitor(paiTIDs);
+            default:
+                System.out.println("\"" + pstrEngine + "\" is not a known engine.\n\n" + USAGE);
                 System.exit(1);
-            }
+                return null;
         }
-        return result;
     }
 
     /**
@@ -0,0 +1,599 @@
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Class DiningSimulation
+ * Discrete-event simulation of the dinner: same loop as Philosopher.run(),
+ * same arbitration rules as the monitor (Monitor.arbitrate() and priorities,
+ * or arbitrateFairly() and tickets,
+ * pepper shakers, talking excludes napping, friends joining and philosophers
+ * leaving), but on a virtual clock. Nobody sleeps: the next event is taken
+ * off a priority queue and the clock jumps to it.
+ *
+ * Who waits on what follows the monitor's conditions: pepper shakers and
+ * talkers are handed over in FIFO order, endTalk() lets every waiting napper
+ * in as one batch before the next talker, and so on.
+ *
+ * Single-threaded and reproducible: the same seed gives the same run.
+ */
+public class DiningSimulation {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    //What a philosopher is busy doing until their next event
+    private static final byte EATING = 0;
+    private static final byte THINKING = 1;
+    private static final byte TALKING = 2;
+    private static final byte NAPPING = 3;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final DiningConfig config;
+    private final SplittableRandom random;
+    private final EventQueue events = new EventQueue();
+    private long now = 0;
+
+    //Per philosopher, indexed by the order they sat down in
+    private int count = 0;
+    private int[] tid;
+    //Task 3: The ticket they became hungry with, and how many times they
+    //were passed over since, when arbitrating fairly
+    private int[] priority;
+    private final boolean fair;
+    private int nextTicket = 0;
+    private int[] bypasses;
+    private Monitor.Status[] status;
+    private byte[] activity;
+    private int[] steps;
+    private long[] since;
+    private boolean[] invited;
+    private boolean[] leaving;
+    private PhilosopherStats[] stats;
+
+    //The table is a ring of philosophers; joinTable() seats them to the
+    //right of their host, the first ones before head
+    private int[] leftOf;
+    private int[] rightOf;
+    private int head = 0;
+    private int seated = 0;
+    private int nextTID;
+
+    //Task 6: Pepper shakers. Everyone takes one of each condiment, all at
+    //once and in order, so the scarcest one is all that matters.
+    private final int maxPeppers = ResourceAllocator.fromProperties().capacity();
+    private int peppers = 0;
+    private final IntFifo waitingForPepper = new IntFifo();
+
+    private boolean aPhilosopherIsTalking = false;
+    private int philosophersNapping = 0;
+    private final IntFifo waitingToTalk = new IntFifo();
+    private final IntFifo waitingToNap = new IntFifo();
+
+    private long meals = 0;
+    private int finished = 0;
+    //How long each meal was waited for, in virtual nanoseconds
+    private final LatencyHistogram hungryWaits = new LatencyHistogram();
+
+    /**
+     * Binary min-heap of (time, philosopher), ties broken by insertion order
+     */
+    private static final class EventQueue
+    {
+        private long[] times = new long[16];
+        private long[] order = new long[16];
+        private int[] who = new int[16];
+        private int size = 0;
+        private long nextOrder = 0;
+
+        boolean isEmpty()
+        {
+            return size == 0;
+        }
+
+        long peekTime()
+        {
+            return times[0];
+        }
+
+        void add(long plTime, int piWho)
+        {
+            if(size == times.length)
+            {
+                times = Arrays.copyOf(times, size * 2);
+                order = Arrays.copyOf(order, size * 2);
+                who = Arrays.copyOf(who, size * 2);
+            }
+            long lOrder = nextOrder++;
+            int i = size++;
+            while(i > 0)
+            {
+                int parent = (i - 1) >>> 1;
+                if(!before(plTime, lOrder, times[parent], order[parent]))
+                    break;
+                move(parent, i);
+                i = parent;
+            }
+            set(i, plTime, lOrder, piWho);
+        }
+
+        int poll()
+        {
+            int result = who[0];
+            size--;
+            long lTime = times[size];
+            long lOrder = order[size];
+            int iWho = who[size];
+            int i = 0;
+            for(;;)
+            {
+                int child = 2 * i + 1;
+                if(child >= size)
+                    break;
+                if(child + 1 < size && before(times[child + 1], order[child + 1], times[child], order[child]))
+                    child++;
+                if(!before(times[child], order[child], lTime, lOrder))
+                    break;
+                move(child, i);
+                i = child;
+            }
+            set(i, lTime, lOrder, iWho);
+            return result;
+        }
+
+        private static boolean before(long plTime, long plOrder, long plOtherTime, long plOtherOrder)
+        {
+            return plTime < plOtherTime || (plTime == plOtherTime && plOrder < plOtherOrder);
+        }
+
+        private void move(int piFrom, int piTo)
+        {
+            set(piTo, times[piFrom], order[piFrom], who[piFrom]);
+        }
+
+        private void set(int i, long plTime, long plOrder, int piWho)
+        {
+            times[i] = plTime;
+            order[i] = plOrder;
+            who[i] = piWho;
+        }
+    }
+
+    /**
+     * FIFO of philosophers waiting on a condition
+     */
+    private static final class IntFifo
+    {
+        private int[] items = new int[16];
+        private int first = 0;
+        private int size = 0;
+
+        boolean isEmpty()
+        {
+            return size == 0;
+        }
+
+        void add(int piItem)
+        {
+            if(size == items.length)
+            {
+                int[] grown = new int[size * 2];
+                for(int i = 0; i < size; i++)
+                {
+                    grown[i] = items[(first + i) % items.length];
+                }
+                items = grown;
+                first = 0;
+            }
+            items[(first + size++) % items.length] = piItem;
+        }
+
+        int poll()
+        {
+            int item = items[first];
+            first = (first + 1) % items.length;
+            size--;
+            return item;
+        }
+    }
+
+    public DiningSimulation(DiningConfig poConfig)
+    {
+        config = poConfig;
+        random = new SplittableRandom(poConfig.seed);
+        fair = poConfig.arbitration.equals("fair");
+        int capacity = Math.max(16, poConfig.philosophers * 2);
+        tid = new int[capacity];
+        priority = new int[capacity];
+        bypasses = new int[capacity];
+        status = new Monitor.Status[capacity];
+        activity = new byte[capacity];
+        steps = new int[capacity];
+        since = new long[capacity];
+        invited = new boolean[capacity];
+        leaving = new boolean[capacity];
+        stats = new PhilosopherStats[capacity];
+        leftOf = new int[capacity];
+        rightOf = new int[capacity];
+
+        int[] shuffled = Monitor.shufflePriorities(poConfig.philosophers);
+        for(int i = 0; i < poConfig.philosophers; i++)
+        {
+            seat(i + 1, shuffled[i], -1);
+        }
+        nextTID = poConfig.philosophers + 1;
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    /**
+     * Runs a whole dinner, then prints every philosopher's stats
+     */
+    public static void simulate(DiningConfig poConfig)
+    {
+        DiningSimulation oSimulation = new DiningSimulation(poConfig);
+        long lStart = System.nanoTime();
+        oSimulation.run();
+        long lWall = System.nanoTime() - lStart;
+
+        PhilosopherStats.print(System.out, oSimulation.getStats());
+        System.out.printf("Simulated %d philosopher(s) for %.1f s in %.3f s: %d meals, %.0f meals per second of wall time.%n",
+                oSimulation.count, oSimulation.now / 1e9, lWall / 1e9,
+                oSimulation.meals, oSimulation.meals * 1e9 / lWall);
+        if(oSimulation.finished < oSimulation.count)
+        {
+            System.out.println((oSimulation.count - oSimulation.finished)
+                    + " philosopher(s) never got what they were waiting for.");
+        }
+    }
+
+    /**
+     * Plays every event until nobody has anything left to do
+     */
+    public void run()
+    {
+        int first = count;
+        for(int p = 0; p < first; p++)
+        {
+            pickUp(p);
+        }
+        while(!events.isEmpty())
+        {
+            now = events.peekTime();
+            int p = events.poll();
+            switch(activity[p])
+            {
+                case EATING:
+                    doneEating(p);
+                    break;
+                case THINKING:
+                    doneThinking(p);
+                    break;
+                case TALKING:
+                    endTalk(p);
+                    break;
+                default:
+                    endNap(p);
+                    break;
+            }
+        }
+    }
+
+    public PhilosopherStats[] getStats()
+    {
+        return Arrays.copyOf(stats, count);
+    }
+
+    public LatencyHistogram getHungryWaits()
+    {
+        return hungryWaits;
+    }
+
+    public long getMeals()
+    {
+        return meals;
+    }
+
+    /**
+     * @return Virtual nanoseconds since the dinner started
+     */
+    public long getTime()
+    {
+        return now;
+    }
+
+    private long randomDuration()
+    {
+        return (long) (random.nextDouble() * config.actionMillis * NANOS_PER_MILLI);
+    }
+
+    private void schedule(int p, byte pcActivity, long plDuration)
+    {
+        activity[p] = pcActivity;
+        events.add(now + plDuration, p);
+    }
+
+    /**
+     * A new philosopher sits down to the right of the given one, or before
+     * the head of the table (i.e. at the last seat) if it is -1
+     * @return Their index
+     */
+    private int seat(int piTID, int piPriority, int after)
+    {
+        if(count == tid.length)
+            grow();
+        int p = count++;
+        tid[p] = piTID;
+        priority[p] = piPriority;
+        status[p] = Monitor.Status.full;
+        stats[p] = new PhilosopherStats(piTID);
+        if(seated++ == 0)
+        {
+            leftOf[p] = p;
+            rightOf[p] = p;
+            head = p;
+        }
+        else
+        {
+            if(after < 0)
+                after = leftOf[head];
+            int next = rightOf[after];
+            leftOf[p] = after;
+            rightOf[p] = next;
+            rightOf[after] = p;
+            leftOf[next] = p;
+        }
+        return p;
+    }
+
+    private void grow()
+    {
+        int capacity = tid.length * 2;
+        tid = Arrays.copyOf(tid, capacity);
+        priority = Arrays.copyOf(priority, capacity);
+        bypasses = Arrays.copyOf(bypasses, capacity);
+        status = Arrays.copyOf(status, capacity);
+        activity = Arrays.copyOf(activity, capacity);
+        steps = Arrays.copyOf(steps, capacity);
+        since = Arrays.copyOf(since, capacity);
+        invited = Arrays.copyOf(invited, capacity);
+        leaving = Arrays.copyOf(leaving, capacity);
+        stats = Arrays.copyOf(stats, capacity);
+        leftOf = Arrays.copyOf(leftOf, capacity);
+        rightOf = Arrays.copyOf(rightOf, capacity);
+    }
+
+    /**
+     * Monitor.check()
+     * @return true if the philosopher just started eating
+     */
+    private boolean check(int p)
+    {
+        Monitor.Status current = status[p];
+        int left = leftOf[p];
+        int right = rightOf[p];
+        Monitor.Status next = fair
+                ? Monitor.arbitrateFairly(current, status[left], status[right],
+                        priority[p], priority[left], priority[right],
+                        bypasses[p], bypasses[left], bypasses[right])
+                : Monitor.arbitrate(current, status[left], status[right],
+                        priority[p], priority[left], priority[right]);
+        if(next != current && (next == Monitor.Status.hasRightChopstick
+                || next == Monitor.Status.hasLeftChopstick))
+            stats[p].oneChopstickHolds++;
+        status[p] = next;
+        if(fair && current != Monitor.Status.eating && next == Monitor.Status.eating)
+        {
+            passOver(left);
+            if(right != left)
+                passOver(right);
+        }
+        return current != Monitor.Status.eating && next == Monitor.Status.eating;
+    }
+
+    private void passOver(int p)
+    {
+        if(status[p] == Monitor.Status.hungry && bypasses[p] < Monitor.MAX_BYPASSES)
+            bypasses[p]++;
+    }
+
+    private void pickUp(int p)
+    {
+        status[p] = Monitor.Status.hungry;
+        if(fair)
+        {
+            priority[p] = nextTicket++;
+            bypasses[p] = 0;
+        }
+        since[p] = now;
+        if(check(p))
+            gotChopsticks(p);
+    }
+
+    /**
+     * The philosopher holds both chopsticks: eat, or leave the table
+     */
+    private void gotChopsticks(int p)
+    {
+        if(leaving[p])
+        {
+            leave(p);
+            return;
+        }
+        stats[p].hungryNanos += now - since[p];
+        hungryWaits.record(now - since[p]);
+
+        if(peppers < maxPeppers)
+        {
+            peppers++;
+            schedule(p, EATING, randomDuration());
+        }
+        else
+        {
+            since[p] = now;
+            waitingForPepper.add(p);
+        }
+    }
+
+    private void doneEating(int p)
+    {
+        meals++;
+        stats[p].meals++;
+
+        //putDown(): the pepper shaker goes straight to whoever waits for it
+        status[p] = Monitor.Status.full;
+        if(waitingForPepper.isEmpty())
+        {
+            peppers--;
+        }
+        else
+        {
+            int q = waitingForPepper.poll();
+            stats[q].pepperNanos += now - since[q];
+            schedule(q, EATING, randomDuration());
+        }
+        checkNeighbours(p);
+
+        //Task 5: Invite a friend, who starts right away
+        if(!invited[p] && random.nextDouble() < config.oddsOfInvitingFriend)
+        {
+            invited[p] = true;
+            int friend = seat(nextTID, nextTID, p);
+            nextTID++;
+            checkNeighbours(friend);
+            pickUp(friend);
+        }
+
+        //Task 5: Leave the table once the neighbours are not eating
+        if(random.nextDouble() < config.oddsOfLeavingTable)
+        {
+            leaving[p] = true;
+            pickUp(p);
+            return;
+        }
+
+        schedule(p, THINKING, randomDuration());
+    }
+
+    private void checkNeighbours(int p)
+    {
+        int left = leftOf[p];
+        if(left != p && check(left))
+            gotChopsticks(left);
+        int right = rightOf[p];
+        if(right != p && check(right))
+            gotChopsticks(right);
+    }
+
+    private void leave(int p)
+    {
+        int left = leftOf[p];
+        int right = rightOf[p];
+        status[p] = Monitor.Status.full;
+        finished++;
+        seated--;
+        if(left == p)
+            return;
+
+        rightOf[left] = right;
+        leftOf[right] = left;
+        if(head == p)
+            head = right;
+        //Our former neighbours may now be able to eat
+        if(check(left))
+            gotChopsticks(left);
+        if(right != left && check(right))
+            gotChopsticks(right);
+    }
+
+    private void doneThinking(int p)
+    {
+        if(random.nextDouble() < config.oddsOfTalking)
+            requestTalk(p);
+        else
+            requestNap(p);
+    }
+
+    /**
+     * TalkNapCoordinator's phases: from the time a talker asks until the
+     * last talker in line is done, no napper goes in
+     */
+    private boolean talkPhase()
+    {
+        return aPhilosopherIsTalking || !waitingToTalk.isEmpty();
+    }
+
+    private void requestTalk(int p)
+    {
+        if(talkPhase() || philosophersNapping > 0)
+        {
+            since[p] = now;
+            waitingToTalk.add(p);
+        }
+        else
+        {
+            aPhilosopherIsTalking = true;
+            schedule(p, TALKING, 0);
+        }
+    }
+
+    private void grantTalk()
+    {
+        int q = waitingToTalk.poll();
+        stats[q].talkWaitNanos += now - since[q];
+        aPhilosopherIsTalking = true;
+        schedule(q, TALKING, 0);
+    }
+
+    private void endTalk(int p)
+    {
+        aPhilosopherIsTalking = false;
+        //The nappers who waited for this talk go in as one batch
+        while(!waitingToNap.isEmpty())
+        {
+            int q = waitingToNap.poll();
+            stats[q].napWaitNanos += now - since[q];
+            philosophersNapping++;
+            schedule(q, NAPPING, randomDuration());
+        }
+        //Then the next talker, once they are all gone
+        if(!waitingToTalk.isEmpty() && philosophersNapping == 0)
+            grantTalk();
+        requestNap(p);
+    }
+
+    private void requestNap(int p)
+    {
+        if(talkPhase())
+        {
+            since[p] = now;
+            waitingToNap.add(p);
+        }
+        else
+        {
+            philosophersNapping++;
+            schedule(p, NAPPING, randomDuration());
+        }
+    }
+
+    private void endNap(int p)
+    {
+        philosophersNapping--;
+        if(philosophersNapping == 0 && !aPhilosopherIsTalking && !waitingToTalk.isEmpty())
+            grantTalk();
+
+        steps[p]++;
+        if(steps[p] < config.steps)
+            pickUp(p);
+        else
+            finished++;
+    }
+}
+
+// EOF
@@ -0,0 +1,138 @@
+
+import common.BaseThread;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Class DiningSweep
+ * Runs the dinner once per combination of a DiningConfig sweep, one after
+ * the other in this JVM, and writes one CSV line per run: the value of
+ * every sweepable key, then how many meals were had per second of wall
+ * time, and how long philosophers waited for their chopsticks (from
+ * DiningMetrics, so empty with -Ddining.metrics=off; simulated dinners keep
+ * their own, in virtual time).
+ *
+ * Each dinner starts over: TIDs from 1 again, and fresh metrics.
+ */
+public final class DiningSweep {
+
+    private DiningSweep()
+    {
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    public static void run(List<DiningConfig> paoRuns) throws InterruptedException
+    {
+        DiningConfig oFirst = paoRuns.get(0);
+        if(oFirst.get("record") != null || oFirst.get("replay") != null)
+        {
+            System.out.println("A sweep can not record or replay its schedule.");
+            System.exit(1);
+        }
+        oFirst.install();
+
+        PrintStream oCsv = System.out;
+        if(oFirst.get("csv") != null)
+        {
+            try
+            {
+                oCsv = new PrintStream(oFirst.get("csv"));
+            }
+            catch(FileNotFoundException e)
+            {
+                System.err.println("DiningSweep.run():");
+                DiningPhilosophers.reportException(e);
+                System.exit(1);
+            }
+        }
+
+        StringBuilder oHeader = new StringBuilder();
+        for(String strKey : DiningConfig.SWEEPABLE)
+        {
+            oHeader.append(strKey).append(',');
+        }
+        oHeader.append("meals,seconds,meals_per_s,hungry_mean_ms,hungry_p50_us,hungry_p99_us,hungry_p999_us");
+        oCsv.println(oHeader);
+
+        for(DiningConfig oConfig : paoRuns)
+        {
+            oConfig.install();
+            StringBuilder oLine = new StringBuilder();
+            for(String strKey : DiningConfig.SWEEPABLE)
+            {
+                oLine.append(oConfig.get(strKey)).append(',');
+            }
+            if(oConfig.threads.equals("simulated"))
+                simulate(oConfig, oLine);
+            else
+                dine(oConfig, oLine);
+            oCsv.println(oLine);
+            oCsv.flush();
+        }
+
+        EventLog.close();
+        if(oCsv != System.out)
+            oCsv.close();
+    }
+
+    private static void dine(DiningConfig poConfig, StringBuilder poLine) throws InterruptedException
+    {
+        BaseThread.resetTIDs();
+        DiningMetrics.reset();
+        long lNanos = DiningPhilosophers.dine(poConfig, null);
+        if(!DiningMetrics.ENABLED)
+        {
+            poLine.append(",").append(lNanos / 1e9).append(",,,,,");
+            return;
+        }
+
+        long lMeals = 0;
+        long lHungryNanos = 0;
+        for(PhilosopherStats oStats : DiningMetrics.snapshot())
+        {
+            lMeals += oStats.meals;
+            lHungryNanos += oStats.hungryNanos;
+        }
+        LatencyHistogram oHungry = DiningMetrics.hungryWaits();
+        append(poLine, lMeals, lNanos, lHungryNanos);
+        append(poLine, oHungry);
+    }
+
+    private static void simulate(DiningConfig poConfig, StringBuilder poLine)
+    {
+        DiningSimulation oSimulation = new DiningSimulation(poConfig);
+        long lStart = System.nanoTime();
+        oSimulation.run();
+        long lNanos = System.nanoTime() - lStart;
+
+        long lHungryNanos = 0;
+        for(PhilosopherStats oStats : oSimulation.getStats())
+        {
+            lHungryNanos += oStats.hungryNanos;
+        }
+        append(poLine, oSimulation.getMeals(), lNanos, lHungryNanos);
+        append(poLine, oSimulation.getHungryWaits());
+    }
+
+    private static void append(StringBuilder poLine, LatencyHistogram poHungry)
+    {
+        poLine.append(',').append(poHungry.percentile(50) / 1e3)
+                .append(',').append(poHungry.percentile(99) / 1e3)
+                .append(',').append(poHungry.percentile(99.9) / 1e3);
+    }
+
+    private static void append(StringBuilder poLine, long plMeals, long plNanos, long plHungryNanos)
+    {
+        poLine.append(plMeals)
+                .append(',').append(plNanos / 1e9)
+                .append(',').append(plMeals * 1e9 / plNanos)
+                .append(',').append((plMeals == 0) ? 0 : plHungryNanos / 1e6 / plMeals);
+    }
+}
+
+// EOF
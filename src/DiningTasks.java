@@ -0,0 +1,233 @@
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class DiningTasks
+ * Runs the philosophers as tasks on a work-stealing pool, rather than on
+ * threads of their own: each philosopher is a state machine going through
+ * the steps of Philosopher.run(), one task at a time. No step blocks a
+ * thread. A philosopher who must wait for their chopsticks, the pepper,
+ * their turn to talk or to nap leaves a continuation with the monitor
+ * (see Continuations), and whoever lets them in submits their next step.
+ * Eating, thinking and napping are timers that submit the next step once
+ * over. So a table of any size runs on availableProcessors() threads.
+ *
+ * Only the global engine (alone, or at the tables of a DiningHall) hands
+ * chopsticks to continuations.
+ */
+public class DiningTasks {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    //Where a philosopher is in Philosopher.run(): the step to take when
+    //they run next
+    private enum Step {hungry, eat, ate, left, think, thought, talk, nap, napping, napped};
+
+    private final Monitor monitor;
+    private final Continuations continuations;
+    private final DiningConfig config;
+    private final ForkJoinPool pool;
+    //Submits the next step once eating, thinking or napping is over
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+
+    //Philosophers who have not left, nor finished their meals
+    private final AtomicInteger diners = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Constructor, for a dinner at the given monitor
+     */
+    DiningTasks(Monitor poMonitor, DiningConfig poConfig)
+    {
+        monitor = poMonitor;
+        continuations = poMonitor.continuations();
+        if(continuations == null)
+            throw new IllegalArgumentException(poMonitor.getClass().getSimpleName()
+                    + " can not hand chopsticks to a continuation: use the global engine");
+        config = poConfig;
+        //FIFO: the tasks are never joined, they are events
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                (poThread, poException) -> {
+                    System.err.println("DiningTasks:");
+                    DiningPhilosophers.reportException(
+                            poException instanceof Exception ? (Exception) poException : new RuntimeException(poException));
+                    System.exit(1);
+                },
+                true);
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    /**
+     * Runs the philosophers until every one of them (and their friends)
+     * has left or eaten all their meals
+     */
+    void dine(Philosopher[] paoPhilosophers) throws InterruptedException
+    {
+        diners.addAndGet(paoPhilosophers.length);
+        for(Philosopher oPhilosopher : paoPhilosophers)
+        {
+            pool.execute(new Diner(oPhilosopher));
+        }
+        if(paoPhilosophers.length > 0)
+            done.await();
+        pool.shutdown();
+        timer.shutdown();
+    }
+
+    /**
+     * One of the philosophers' steps is done: is anyone left?
+     */
+    private void finished()
+    {
+        if(diners.decrementAndGet() == 0)
+            done.countDown();
+    }
+
+    /**
+     * Class Diner
+     * A philosopher, one step at a time
+     */
+    private final class Diner implements Runnable {
+
+        private final Philosopher philosopher;
+        private final int tid;
+        private Step next = Step.hungry;
+        private int meals = 0;
+        private boolean invited = false;
+
+        //Whoever lets us go on hands our next step to the pool
+        private final Runnable resume = () -> pool.execute(this);
+
+        Diner(Philosopher poPhilosopher)
+        {
+            philosopher = poPhilosopher;
+            tid = poPhilosopher.getTID();
+        }
+
+        /**
+         * Takes steps until one has to wait. Only ever run by one thread at
+         * a time: the next step is only submitted once this one is over.
+         */
+        public void run()
+        {
+            for(;;)
+            {
+                switch(next)
+                {
+                    case hungry:
+                        if(meals >= config.steps)
+                        {
+                            finished();
+                            return;
+                        }
+                        next = Step.eat;
+                        if(!continuations.pickUp(tid, resume))
+                            return;
+                        break;
+                    case eat:
+                        EventLog.log(EventLog.STARTED_EATING, tid);
+                        next = Step.ate;
+                        if(waitAWhile())
+                            return;
+                        break;
+                    case ate:
+                        EventLog.log(EventLog.DONE_EATING, tid);
+                        monitor.putDown(tid);
+                        meals++;
+                        //Task 5: Invite a friend, or leave the table, at random
+                        if(philosopher.random().nextDouble() < config.oddsOfInvitingFriend && !invited)
+                        {
+                            invited = true;
+                            Philosopher oFriend = new Philosopher();
+                            monitor.joinTable(oFriend.getTID(), tid);
+                            diners.incrementAndGet();
+                            pool.execute(new Diner(oFriend));
+                        }
+                        next = Step.think;
+                        if(philosopher.random().nextDouble() < config.oddsOfLeavingTable)
+                        {
+                            next = Step.left;
+                            if(!continuations.leaveTable(tid, resume))
+                                return;
+                        }
+                        break;
+                    case left:
+                        //Our seat is free, so is our TID, for the next friend
+                        DiningMetrics.retire(tid);
+                        philosopher.retireTID();
+                        finished();
+                        return;
+                    case think:
+                        EventLog.log(EventLog.STARTED_THINKING, tid);
+                        next = Step.thought;
+                        if(waitAWhile())
+                            return;
+                        break;
+                    case thought:
+                        EventLog.log(EventLog.DONE_THINKING, tid);
+                        next = Step.nap;
+                        if(philosopher.random().nextDouble() < config.oddsOfTalking)
+                        {
+                            next = Step.talk;
+                            if(!monitor.requestTalk(tid, resume))
+                                return;
+                        }
+                        break;
+                    case talk:
+                        EventLog.log(EventLog.STARTED_TALKING, tid);
+                        philosopher.saySomething();
+                        EventLog.log(EventLog.DONE_TALKING, tid);
+                        monitor.endTalk(tid);
+                        next = Step.nap;
+                        break;
+                    case nap:
+                        next = Step.napping;
+                        if(!monitor.requestNap(tid, resume))
+                            return;
+                        break;
+                    case napping:
+                        EventLog.log(EventLog.STARTED_NAPPING, tid);
+                        next = Step.napped;
+                        if(waitAWhile())
+                            return;
+                        break;
+                    case napped:
+                        EventLog.log(EventLog.DONE_NAPPING, tid);
+                        monitor.endNap(tid);
+                        next = Step.hungry;
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Eats, thinks or naps for a random time, as Philosopher does,
+         * without sleeping
+         *
+         * @return Whether the timer takes the next step, else it is to be
+         * taken right away
+         */
+        private boolean waitAWhile()
+        {
+            long lMillis = (long) (philosopher.random().nextDouble() * config.actionMillis);
+            if(lMillis == 0)
+                return false;
+            timer.schedule(resume, lMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+}
+
+// EOF
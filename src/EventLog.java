@@ -0,0 +1,358 @@
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class EventLog
+ * What the philosophers and the monitor used to println(), as fixed-size
+ * records (timestamp, TID, seat, event code, argument) in a preallocated ring
+ * buffer. Logging an event is a ticket increment and a few stores; a
+ * background writer formats the records in batches.
+ *
+ * Configured once, from system properties:
+ *
+ *   -Ddining.log=text|binary|off   text (the default) prints the same lines as
+ *                                  before; binary writes 24-byte big-endian
+ *                                  records (long timestamp, int TID, int seat,
+ *                                  int code, int argument); off makes log()
+ *                                  a no-op the JIT removes entirely
+ *   -Ddining.log.file=PATH         where to write instead of STDOUT
+ *   -Ddining.log.capacity=N        records in the ring, a power of two
+ *
+ * A producer never waits for the writer: log() is called with the table's
+ * lock held, and a slow writer must not stall everyone waiting for it. A
+ * record finding the ring full is dropped and counted instead, and close()
+ * reports how many were, if any: raise dining.log.capacity then. Records
+ * logged after close() are dropped too, as nobody consumes them.
+ */
+public final class EventLog {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    //Event codes
+    public static final int PRIORITY = 0;
+    public static final int CAME_IN = 1;
+    public static final int TOOK_RIGHT_CHOPSTICK = 2;
+    public static final int TOOK_LEFT_CHOPSTICK = 3;
+    public static final int WAITING_TO_EAT = 4;
+    public static final int WAITING_FOR_PEPPER = 5;
+    public static final int TOOK_PEPPER = 6;
+    public static final int PUT_DOWN_PEPPER = 7;
+    public static final int JOINED_TABLE = 8;
+    public static final int LEFT_TABLE = 9;
+    public static final int STARTED_EATING = 10;
+    public static final int DONE_EATING = 11;
+    public static final int STARTED_THINKING = 12;
+    public static final int DONE_THINKING = 13;
+    public static final int STARTED_NAPPING = 14;
+    public static final int DONE_NAPPING = 15;
+    public static final int STARTED_TALKING = 16;
+    public static final int DONE_TALKING = 17;
+    public static final int SAYS = 18;
+
+    /**
+     * Seat of an event that is not about a seat
+     */
+    public static final int NO_SEAT = -1;
+
+    static final boolean ENABLED;
+    private static final boolean BINARY;
+
+    private static final int FIELDS = 4;
+    private static final int BATCH = 256;
+    private static final long IDLE_NANOS = 200000;
+
+    private static final int siMask;
+    private static final AtomicLongArray soSequence;
+    private static final long[] salTimestamps;
+    private static final int[] saiFields;
+    private static final AtomicLong soTail = new AtomicLong();
+    private static final AtomicLong soDropped = new AtomicLong();
+
+    private static final OutputStream soOut;
+    private static final Thread soWriter;
+    private static volatile boolean sbClosing = false;
+
+    static {
+        String strMode = System.getProperty("dining.log", "text");
+        ENABLED = !strMode.equals("off");
+        BINARY = strMode.equals("binary");
+        if(ENABLED && !BINARY && !strMode.equals("text"))
+            throw new IllegalArgumentException("dining.log must be text, binary or off, not \"" + strMode + "\"");
+
+        int iCapacity = ENABLED ? Integer.getInteger("dining.log.capacity", 1 << 16) : 1;
+        if(Integer.bitCount(iCapacity) != 1)
+            throw new IllegalArgumentException("dining.log.capacity must be a power of two");
+        siMask = iCapacity - 1;
+        soSequence = new AtomicLongArray(iCapacity);
+        salTimestamps = new long[iCapacity];
+        saiFields = new int[iCapacity * FIELDS];
+        for(int i = 0; i < iCapacity; i++)
+        {
+            //Slot i is free for the ticket i
+            soSequence.set(i, i);
+        }
+
+        if(ENABLED)
+        {
+            soOut = openOutput(System.getProperty("dining.log.file"));
+            soWriter = new Thread(EventLog::write, "EventLog writer");
+            soWriter.setDaemon(true);
+            soWriter.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(EventLog::close));
+        }
+        else
+        {
+            soOut = null;
+            soWriter = null;
+        }
+    }
+
+    private EventLog()
+    {
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    private static OutputStream openOutput(String pstrFile)
+    {
+        if(pstrFile == null)
+            return new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+        try
+        {
+            return new BufferedOutputStream(new FileOutputStream(pstrFile), 1 << 16);
+        }
+        catch(FileNotFoundException e)
+        {
+            System.err.println("EventLog:");
+            DiningPhilosophers.reportException(e);
+            System.exit(1);
+            return null;
+        }
+    }
+
+    public static void log(int piCode, int piTID)
+    {
+        log(piCode, piTID, NO_SEAT, 0);
+    }
+
+    public static void log(int piCode, int piTID, int piSeat)
+    {
+        log(piCode, piTID, piSeat, 0);
+    }
+
+    /**
+     * Appends one record. Allocation-free and never waits: dropped if the
+     * ring is full, or once the log is closed.
+     */
+    public static void log(int piCode, int piTID, int piSeat, int piArgument)
+    {
+        if(!ENABLED || sbClosing)
+            return;
+
+        long lTicket;
+        int i;
+        for(;;)
+        {
+            lTicket = soTail.get();
+            i = (int) lTicket & siMask;
+            long lFree = soSequence.get(i) - lTicket;
+            if(lFree == 0)
+            {
+                if(soTail.compareAndSet(lTicket, lTicket + 1))
+                    break;
+            }
+            else if(lFree < 0)
+            {
+                //The writer has not consumed this slot's previous record yet
+                soDropped.incrementAndGet();
+                return;
+            }
+            //else another producer took this ticket: try the next one
+        }
+        salTimestamps[i] = System.nanoTime();
+        int f = i * FIELDS;
+        saiFields[f] = piCode;
+        saiFields[f + 1] = piTID;
+        saiFields[f + 2] = piSeat;
+        saiFields[f + 3] = piArgument;
+        //Publishes the plain stores above to the writer
+        soSequence.set(i, lTicket + 1);
+    }
+
+    /**
+     * Waits for every record logged so far to be written out, then stops
+     * the writer, and tells how many records were dropped. Later records
+     * are not written.
+     */
+    public static void close()
+    {
+        if(!ENABLED || sbClosing)
+            return;
+        sbClosing = true;
+        LockSupport.unpark(soWriter);
+        try
+        {
+            soWriter.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        long lDropped = soDropped.get();
+        if(lDropped > 0)
+            System.err.println("EventLog: " + lDropped + " record(s) dropped, the ring was full"
+                    + " (see -Ddining.log.capacity)");
+    }
+
+    /**
+     * The writer thread: drains the ring in batches, flushes when idle
+     */
+    private static void write()
+    {
+        long lHead = 0;
+        StringBuilder oText = new StringBuilder(BATCH * 64);
+        DataOutputStream oBinary = new DataOutputStream(soOut);
+        try
+        {
+            for(;;)
+            {
+                int iWritten = 0;
+                while(iWritten < BATCH)
+                {
+                    int i = (int) lHead & siMask;
+                    if(soSequence.get(i) != lHead + 1)
+                        break;
+
+                    int f = i * FIELDS;
+                    if(BINARY)
+                    {
+                        oBinary.writeLong(salTimestamps[i]);
+                        oBinary.writeInt(saiFields[f + 1]);
+                        oBinary.writeInt(saiFields[f + 2]);
+                        oBinary.writeInt(saiFields[f]);
+                        oBinary.writeInt(saiFields[f + 3]);
+                    }
+                    else
+                    {
+                        format(oText, saiFields[f], saiFields[f + 1], saiFields[f + 2], saiFields[f + 3]);
+                        oText.append('\n');
+                    }
+                    //Hands the slot over to the ticket one lap ahead
+                    soSequence.set(i, lHead + siMask + 1);
+                    lHead++;
+                    iWritten++;
+                }
+
+                if(oText.length() > 0)
+                {
+                    soOut.write(oText.toString().getBytes());
+                    oText.setLength(0);
+                }
+                if(iWritten == 0)
+                {
+                    soOut.flush();
+                    if(sbClosing && lHead == soTail.get())
+                        return;
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("EventLog.write():");
+            DiningPhilosophers.reportException(e);
+        }
+    }
+
+    /**
+     * The line each event used to be printed as
+     */
+    static void format(StringBuilder poText, int piCode, int piTID, int piSeat, int piArgument)
+    {
+        if(piCode == CAME_IN)
+        {
+            poText.append(piArgument).append(" philosopher(s) came in for a dinner.");
+            return;
+        }
+
+        poText.append("Philosopher ").append(piTID);
+        switch(piCode)
+        {
+            case PRIORITY:
+                poText.append(" has priority ").append(piArgument);
+                break;
+            case TOOK_RIGHT_CHOPSTICK:
+                poText.append(" has taken the right chopstick");
+                break;
+            case TOOK_LEFT_CHOPSTICK:
+                poText.append(" has taken the left chopstick");
+                break;
+            case WAITING_TO_EAT:
+                poText.append(" is waiting to eat.");
+                break;
+            case WAITING_FOR_PEPPER:
+                poText.append(" is waiting for a pepper shaker");
+                break;
+            case TOOK_PEPPER:
+                poText.append(" has taken a pepper shaker");
+                break;
+            case PUT_DOWN_PEPPER:
+                poText.append(" puts down a pepper shaker");
+                break;
+            case JOINED_TABLE:
+                poText.append(" has joined the table with priority ").append(piArgument);
+                break;
+            case LEFT_TABLE:
+                poText.append(" has left the table.");
+                break;
+            case STARTED_EATING:
+                poText.append(" has started eating.");
+                break;
+            case DONE_EATING:
+                poText.append(" is done eating.");
+                break;
+            case STARTED_THINKING:
+                poText.append(" has started thinking.");
+                break;
+            case DONE_THINKING:
+                poText.append(" is done thinking.");
+                break;
+            case STARTED_NAPPING:
+                poText.append(" has started napping.");
+                break;
+            case DONE_NAPPING:
+                poText.append(" is done napping.");
+                break;
+            case STARTED_TALKING:
+                poText.append(" has started talking.");
+                break;
+            case DONE_TALKING:
+                poText.append(" is done talking");
+                break;
+            case SAYS:
+                poText.append(" says: ").append(Philosopher.phrase(piArgument, piTID));
+                break;
+            default:
+                poText.append(" did something (event ").append(piCode).append(")");
+                break;
+        }
+    }
+}
+
+// EOF
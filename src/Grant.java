@@ -0,0 +1,94 @@
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class Grant
+ * What an asynchronous request to the monitor completes with (see
+ * Monitor.pickUpAsync()): the philosopher may eat, talk or nap until they
+ * release the grant, which puts down the chopsticks and pepper, ends the
+ * talk or the nap. A grant to leave the table has nothing to release.
+ *
+ * Released once only, the next releases do nothing, so it may be used in a
+ * try-with-resources.
+ */
+public final class Grant implements AutoCloseable {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    public enum Kind {meal, talk, nap, leave};
+
+    private final Monitor monitor;
+    private final int tid;
+    private final Kind kind;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Constructor, for the given philosopher at the given monitor
+     */
+    Grant(Monitor poMonitor, int piTID, Kind peKind)
+    {
+        monitor = poMonitor;
+        tid = piTID;
+        kind = peKind;
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    public int getTID()
+    {
+        return tid;
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * Gives back whatever was granted
+     */
+    public void release()
+    {
+        if(!released.compareAndSet(false, true))
+            return;
+        switch(kind)
+        {
+            case meal:
+                monitor.putDown(tid);
+                break;
+            case talk:
+                monitor.endTalk(tid);
+                break;
+            case nap:
+                monitor.endNap(tid);
+                break;
+            case leave:
+                break;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        release();
+    }
+
+    /**
+     * Completes the request with this grant, or gives it back at once if
+     * the request was cancelled or timed out meanwhile
+     */
+    void complete(CompletableFuture<Grant> poRequest)
+    {
+        if(!poRequest.complete(this))
+            release();
+    }
+}
+
+// EOF
@@ -0,0 +1,128 @@
+
+import java.util.Arrays;
+
+/**
+ * Class LatencyHistogram
+ * Log-linear histogram of durations in nanoseconds, in the spirit of
+ * HdrHistogram: each power of two is split in SUB_BUCKETS linear buckets, so
+ * a percentile is reported within about 3% of the recorded value, whatever
+ * its magnitude.
+ *
+ * Not thread-safe: keep one per recording thread and merge them with add().
+ */
+public class LatencyHistogram {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long max = 0;
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    static int indexOf(long plNanos)
+    {
+        if(plNanos < SUB_BUCKETS)
+            return (int) plNanos;
+        int shift = 63 - Long.numberOfLeadingZeros(plNanos) - SUB_BITS;
+        int sub = (int) (plNanos >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The highest value that falls in the given bucket
+     */
+    private static long valueAt(int piIndex)
+    {
+        int bucket = piIndex / SUB_BUCKETS;
+        int sub = piIndex % SUB_BUCKETS;
+        if(bucket == 0)
+            return sub;
+        int shift = bucket - 1;
+        return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+    }
+
+    public void record(long plNanos)
+    {
+        if(plNanos < 0)
+            plNanos = 0;
+        counts[indexOf(plNanos)]++;
+        count++;
+        if(plNanos > max)
+            max = plNanos;
+    }
+
+    /**
+     * Adds all the values recorded by another histogram to this one
+     */
+    public void add(LatencyHistogram poOther)
+    {
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] += poOther.counts[i];
+        }
+        count += poOther.count;
+        max = Math.max(max, poOther.max);
+    }
+
+    /**
+     * Adds plCount values to the bucket piIndex, as computed by indexOf().
+     * Used to read back a ConcurrentLatencyHistogram.
+     */
+    void add(int piIndex, long plCount, long plMax)
+    {
+        counts[piIndex] += plCount;
+        count += plCount;
+        if(plMax > max)
+            max = plMax;
+    }
+
+    public void reset()
+    {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * @param pdPercentile Between 0 and 100
+     * @return The value below which pdPercentile percent of the recorded
+     * values fall, in nanoseconds
+     */
+    public long percentile(double pdPercentile)
+    {
+        if(count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(pdPercentile / 100.0 * count));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if(seen >= target)
+                return Math.min(valueAt(i), max);
+        }
+        return max;
+    }
+}
+
+// EOF
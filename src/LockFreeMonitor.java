@@ -0,0 +1,514 @@
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class LockFreeMonitor
+ * Arbitration engine without a table lock: every chopstick is a word in an
+ * AtomicIntegerArray holding the TID of its owner (0 when it is free), and a
+ * philosopher takes both of theirs with CAS, spins briefly, then parks.
+ *
+ * As in Monitor, a philosopher who only gets one chopstick may keep it if
+ * they have a higher priority than the neighbour sharing it, and must put it
+ * back otherwise. Priorities are all distinct, so the chain of philosophers
+ * holding one chopstick and waiting for the next can never close into a cycle.
+ *
+ * Joins and leaves are rare: they take the chopsticks whose meaning changes,
+ * then are serialized by their own lock, and publish a new Topology. Nobody
+ * waits for a chopstick while holding that lock, so a slow leaver does not
+ * hold up everyone else's joins and leaves. A philosopher who got both
+ * chopsticks from an outdated topology puts them back and retries.
+ */
+public class LockFreeMonitor extends Monitor {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    /**
+     * Spins (with Thread.onSpinWait()) before a hungry philosopher parks
+     */
+    static final int SPINS_BEFORE_PARKING = 64;
+
+    /**
+     * How long joinTable() naps between attempts at the chopstick it splits
+     */
+    private static final long JOIN_BACKOFF_NANOS = 100000;
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final int FREE = 0;
+    private static final int NONE = -1;
+
+    /**
+     * Chopstick owners, in chunks so that new chopsticks can be added
+     * without copying (or losing) the words of the existing ones. Within a
+     * chunk, a chopstick's word is where the layout puts it, so that
+     * neighbouring chopsticks are on different cache lines.
+     */
+    private volatile AtomicIntegerArray[] owners;
+    private final SeatLayout layout = SeatLayout.fromProperties();
+    private final int chunkLength = layout.length(1 << CHUNK_BITS);
+    private int nextChopstick = 0;
+
+    //Chopsticks given back by those who left, reused before new ones
+    private int[] freeChopsticks = new int[0];
+    private int freeCount = 0;
+
+    private volatile Topology topology;
+
+    //Only joinTable() and leaveTable() take it, once they hold the
+    //chopsticks they need
+    private final ReentrantLock membership = new ReentrantLock();
+
+    /**
+     * A philosopher's place at the table. The same Seat object is carried
+     * over from one topology to the next.
+     */
+    private static final class Seat
+    {
+        final int tid;
+        final int priority;
+        volatile Thread waiter;
+
+        //The chopsticks this philosopher is holding, only touched by them
+        int heldLeft = NONE;
+        int heldRight = NONE;
+
+        Seat(int tid, int priority)
+        {
+            this.tid = tid;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the seating: leftChopstick[s] is shared by
+     * seats s-1 and s.
+     */
+    private static final class Topology
+    {
+        final Seat[] seats;
+        final int[] leftChopstick;
+        final HashMap<Integer, Integer> assignedSeats;
+
+        Topology(Seat[] seats, int[] leftChopstick)
+        {
+            this.seats = seats;
+            this.leftChopstick = leftChopstick;
+            assignedSeats = new HashMap<Integer, Integer>(seats.length * 2);
+            for(int i = 0; i < seats.length; i++)
+            {
+                assignedSeats.put(seats[i].tid, i);
+            }
+        }
+
+        int left(int id)
+        {
+            return (id > 0) ? id - 1 : seats.length - 1;
+        }
+
+        int right(int id)
+        {
+            return (id < seats.length - 1) ? id + 1 : 0;
+        }
+
+        int rightChopstick(int id)
+        {
+            return leftChopstick[right(id)];
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public LockFreeMonitor(int piNumberOfPhilosophers)
+    {
+        this(firstTIDs(piNumberOfPhilosophers));
+    }
+
+    /**
+     * Constructor, for a table whose philosophers have the given TIDs
+     */
+    public LockFreeMonitor(int[] paiTIDs)
+    {
+        nbPhil = paiTIDs.length;
+        owners = new AtomicIntegerArray[0];
+
+        int[] priority = shufflePriorities(nbPhil);
+        logPriorities(paiTIDs, priority);
+        Seat[] seats = new Seat[nbPhil];
+        int[] leftChopstick = new int[nbPhil];
+        for(int i = 0; i < nbPhil; i++)
+        {
+            seats[i] = new Seat(paiTIDs[i], priority[i]);
+            leftChopstick[i] = newChopstick();
+        }
+        topology = new Topology(seats, leftChopstick);
+    }
+
+    /*
+	 * -------------------------------
+	 * User-defined monitor procedures
+	 * -------------------------------
+     */
+    /**
+     * Allocates a free chopstick. Called from the constructor or while
+     * holding the membership lock.
+     */
+    private int newChopstick()
+    {
+        if(freeCount > 0)
+            return freeChopsticks[--freeCount];
+
+        int id = nextChopstick++;
+        if((id >>> CHUNK_BITS) == owners.length)
+        {
+            AtomicIntegerArray[] grown = Arrays.copyOf(owners, owners.length + 1);
+            grown[owners.length] = new AtomicIntegerArray(chunkLength);
+            owners = grown;
+        }
+        return id;
+    }
+
+    /**
+     * Gives back a chopstick nobody sits next to any more, for
+     * newChopstick() to reuse. Called while holding the membership lock.
+     */
+    private void retireChopstick(int chopstick)
+    {
+        if(freeCount == freeChopsticks.length)
+            freeChopsticks = Arrays.copyOf(freeChopsticks, Math.max(8, 2 * freeCount));
+        freeChopsticks[freeCount++] = chopstick;
+    }
+
+    private AtomicIntegerArray chunk(int chopstick)
+    {
+        return owners[chopstick >>> CHUNK_BITS];
+    }
+
+    private int slot(int chopstick)
+    {
+        return layout.slot(chopstick & CHUNK_MASK, chunkLength);
+    }
+
+    private boolean take(int chopstick, int TID)
+    {
+        AtomicIntegerArray chunk = chunk(chopstick);
+        int i = slot(chopstick);
+        return chunk.get(i) == TID || chunk.compareAndSet(i, FREE, TID);
+    }
+
+    /**
+     * Frees a chopstick and wakes up whoever sits on the other side of it
+     */
+    private void release(int chopstick, Seat poOtherSide)
+    {
+        chunk(chopstick).set(slot(chopstick), FREE);
+        if(poOtherSide != null)
+            wake(poOtherSide);
+    }
+
+    /**
+     * Frees a chopstick reserved on an older topology. It may have been
+     * split, or retired and reused since: whoever shares it now may be
+     * parked on it, so they are woken up like in putDown().
+     */
+    private void releaseStale(Topology t, int id, int chopstick)
+    {
+        chunk(chopstick).set(slot(chopstick), FREE);
+        for(int s = 0; s < t.seats.length; s++)
+        {
+            if(t.leftChopstick[s] == chopstick)
+            {
+                wake(t.seats[t.left(s)]);
+                wake(t.seats[s]);
+                return;
+            }
+        }
+        //Nobody's any more: the one we shared it with left, but wake our
+        //neighbours in case they were parked on an older topology
+        wake(t.seats[t.left(id)]);
+        wake(t.seats[t.right(id)]);
+    }
+
+    private void wake(Seat poSeat)
+    {
+        Thread waiter = poSeat.waiter;
+        if(waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
+    /**
+     * One attempt at taking both chopsticks. A single chopstick is kept only
+     * when we have priority over the neighbour sharing it, like Monitor.check().
+     * @return true if the philosopher may now eat
+     */
+    private boolean tryTakeChopsticks(Topology t, int id)
+    {
+        Seat me = t.seats[id];
+        int leftChopstick = t.leftChopstick[id];
+        int rightChopstick = t.rightChopstick(id);
+        Seat left = t.seats[t.left(id)];
+        Seat right = t.seats[t.right(id)];
+
+        //Reservations made on an older topology no longer apply
+        if(me.heldLeft != NONE && me.heldLeft != leftChopstick)
+        {
+            releaseStale(t, id, me.heldLeft);
+            me.heldLeft = NONE;
+        }
+        if(me.heldRight != NONE && me.heldRight != rightChopstick)
+        {
+            releaseStale(t, id, me.heldRight);
+            me.heldRight = NONE;
+        }
+
+        boolean hadOne = me.heldLeft != NONE || me.heldRight != NONE;
+        boolean hasLeft = take(leftChopstick, me.tid);
+        boolean hasRight = (rightChopstick == leftChopstick) ? hasLeft : take(rightChopstick, me.tid);
+        me.heldLeft = hasLeft ? leftChopstick : NONE;
+        me.heldRight = hasRight ? rightChopstick : NONE;
+
+        if(hasLeft && hasRight)
+        {
+            if(t == topology)
+                return true;
+            releaseHeld(me, left, right);
+            return false;
+        }
+
+        if(hasLeft && me.priority <= left.priority)
+        {
+            release(leftChopstick, left);
+            me.heldLeft = NONE;
+        }
+        if(hasRight && me.priority <= right.priority)
+        {
+            release(rightChopstick, right);
+            me.heldRight = NONE;
+        }
+        if(!hadOne && (me.heldLeft != NONE || me.heldRight != NONE))
+            DiningMetrics.oneChopstick(me.tid);
+        return false;
+    }
+
+    private void releaseHeld(Seat me, Seat poLeft, Seat poRight)
+    {
+        if(me.heldLeft != NONE)
+            release(me.heldLeft, poLeft);
+        if(me.heldRight != NONE && me.heldRight != me.heldLeft)
+            release(me.heldRight, poRight);
+        me.heldLeft = NONE;
+        me.heldRight = NONE;
+    }
+
+    /**
+     * Spins, then parks, until the philosopher holds both chopsticks
+     * @return When the first attempt failed, 0 if it did not
+     */
+    private long acquireChopsticks(final int piTID)
+    {
+        int spins = 0;
+        boolean announced = false;
+        long since = 0;
+        for(;;)
+        {
+            Topology t = topology;
+            int id = t.assignedSeats.get(piTID);
+            if(tryTakeChopsticks(t, id))
+                return since;
+            if(since == 0)
+                since = DiningMetrics.now();
+
+            if(spins < SPINS_BEFORE_PARKING)
+            {
+                spins++;
+                Thread.onSpinWait();
+                continue;
+            }
+
+            if(!announced)
+            {
+                EventLog.log(EventLog.WAITING_TO_EAT, piTID, id);
+                announced = true;
+            }
+
+            //Publish ourselves before the last attempt, so that a release
+            //happening after it is guaranteed to unpark us
+            Seat me = t.seats[id];
+            me.waiter = Thread.currentThread();
+            if(tryTakeChopsticks(t, id))
+            {
+                me.waiter = null;
+                return since;
+            }
+            LockSupport.park(this);
+            me.waiter = null;
+        }
+    }
+
+    /**
+     * Grants request (returns) to eat when both chopsticks/forks are available.
+     * Else spins, then parks the philosopher.
+     */
+    @Override
+    public void pickUp(final int piTID)
+    {
+        long hungrySince = acquireChopsticks(piTID);
+        if(hungrySince != 0)
+            DiningMetrics.hungry(piTID, hungrySince);
+
+        takeCondiments(piTID);
+    }
+
+    /**
+     * When a given philosopher's done eating, they put the chopstiks/forks down
+     * and wake their neighbours up.
+     */
+    @Override
+    public void putDown(final int piTID)
+    {
+        putDownCondiments(piTID);
+        DiningMetrics.meal(piTID);
+
+        //Nobody joins or leaves next to us while we eat (they would need
+        //one of our chopsticks), so the current topology tells who shares
+        //them with us
+        Topology t = topology;
+        int id = t.assignedSeats.get(piTID);
+        releaseHeld(t.seats[id], t.seats[t.left(id)], t.seats[t.right(id)]);
+    }
+
+    /**
+     * Allow a philosopher to join the table. They sit at the last seat,
+     * wherever their host is: only the chopstick between the last and the
+     * first seats can be split without stopping the table.
+     */
+    @Override
+    public void joinTable(int threadId, int piHostTID)
+    {
+        for(;;)
+        {
+            membership.lock();
+            try
+            {
+                if(tryJoin(threadId))
+                    return;
+            }
+            finally
+            {
+                membership.unlock();
+            }
+            //Someone eats with the chopstick we split: let them finish
+            LockSupport.parkNanos(JOIN_BACKOFF_NANOS);
+        }
+    }
+
+    /**
+     * Seats the philosopher at the last seat, unless the chopstick between
+     * the last and the first seats is in use. Called while holding the
+     * membership lock.
+     * @return Whether they sat down
+     */
+    private boolean tryJoin(int threadId)
+    {
+        Topology t = topology;
+        int n = t.seats.length;
+        Seat seat = new Seat(threadId, threadId);
+        Seat[] seats = Arrays.copyOf(t.seats, n + 1);
+        int[] leftChopstick = Arrays.copyOf(t.leftChopstick, n + 1);
+        seats[n] = seat;
+
+        if(n == 0)
+        {
+            leftChopstick[0] = newChopstick();
+            topology = new Topology(seats, leftChopstick);
+        }
+        else
+        {
+            //Nobody may eat with the chopstick that changes neighbours
+            int shared = t.leftChopstick[0];
+            if(!take(shared, threadId))
+                return false;
+            leftChopstick[n] = shared;
+            leftChopstick[0] = newChopstick();
+            topology = new Topology(seats, leftChopstick);
+            release(shared, t.seats[n - 1]);
+            //The first seat may be parked on the chopstick it just lost
+            wake(t.seats[0]);
+        }
+        nbPhil = n + 1;
+        EventLog.log(EventLog.JOINED_TABLE, threadId, n, threadId);
+        return true;
+    }
+
+    /**
+     * Allow a philosopher to leave the table, once they hold both their
+     * chopsticks (so their neighbours are not eating).
+     * @param threadID The thread ID of the philosopher that wants to leave
+     */
+    @Override
+    public void leaveTable(int threadID)
+    {
+        for(;;)
+        {
+            acquireChopsticks(threadID);
+            membership.lock();
+            try
+            {
+                if(tryLeave(threadID))
+                    return;
+            }
+            finally
+            {
+                membership.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the philosopher's seat out, if the chopsticks they hold are
+     * still theirs in the current topology. Called while holding the
+     * membership lock.
+     * @return Whether they left, else they take their chopsticks again
+     */
+    private boolean tryLeave(int threadID)
+    {
+        Topology t = topology;
+        int id = t.assignedSeats.get(threadID);
+        Seat me = t.seats[id];
+        if(me.heldLeft != t.leftChopstick[id] || me.heldRight != t.rightChopstick(id))
+            return false;
+
+        int n = t.seats.length - 1;
+        Seat[] seats = new Seat[n];
+        int[] leftChopstick = new int[n];
+        for(int from = 0, to = 0; from <= n; from++)
+        {
+            if(from == id)
+                continue;
+            seats[to] = t.seats[from];
+            leftChopstick[to] = t.leftChopstick[from];
+            to++;
+        }
+        //Our left chopstick now sits between our two former neighbours,
+        //our right one is no longer anybody's
+        if(n > 0)
+            leftChopstick[id < n ? id : 0] = t.leftChopstick[id];
+
+        topology = new Topology(seats, leftChopstick);
+        nbPhil = n;
+        releaseHeld(me, t.seats[t.left(id)], t.seats[t.right(id)]);
+        retireChopstick(t.rightChopstick(id));
+
+        EventLog.log(EventLog.LEFT_TABLE, threadID, id);
+        return true;
+    }
+}
+
+// EOF
@@ -1,10 +1,11 @@
 
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class Monitor
@@ -20,84 +21,290 @@ public class Monitor {
 	 * ------------
      */
     //Task 2: Implementation of monitor
-    //To handle sync of talking: a boolean indicating if a philosopher is talking
-    //and an int specifying how many philosophers are sleeping
-    private boolean aPhilosopherIsTalking = false;
-    private int philosophersNapping = 0;
-    int philosophersWaitingToTalk = 0;
+    //To handle sync of talking: one talker or any number of nappers, apart
+    //from the lock the chopsticks are arbitrated under
+    private final TalkNapCoordinator talkNap = new TalkNapCoordinator();
     
     //To handle the food cycle of a philosopher
-    private enum Status {full, hungry, hasRightChopstick, hasLeftChopstick, eating};
-    
-    //To hold the status of all the philosophers
-    private ArrayList<Status> state;
+    enum Status {full, hungry, hasRightChopstick, hasLeftChopstick, eating};
+    //Status.values() makes a new array at every call
+    private static final Status[] STATUSES = Status.values();
     
     //To hold the conditionals of all the philosophers
-    private Lock lock = new ReentrantLock();
-    private ArrayList<Condition> chopsticks;
-    private Condition talking;
-    private Condition napping;
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    //For MonitorEvent: what to call this engine, and how many changes of
+    //status were made so far
+    private final String engine = getClass().getSimpleName();
+    private int transitions = 0;
     
     //To hold the number of philosophers at the table
     int nbPhil;
     
-    //Task 3: Assign priority to each philosopher
-    private ArrayList<Integer> priority;
+    //Task 5: Seats are indexed by the TID of who sits there, and form a ring
+    //through left and right (the TIDs of the neighbours, 0 for an empty seat).
+    //Status is stored as its ordinal.
+    private byte[] state;
+    //Task 3: Assign priority to each philosopher. Arbitrating fairly, it is
+    //the ticket they got when they last became hungry instead.
+    private int[] priority;
+    private int[] left;
+    private int[] right;
+    //joinTable() inserts before the first seat when nobody invited the
+    //philosopher, 0 when the table is empty
+    private int first = 0;
+    //The seat of a philosopher is their TID minus tidBase, so that a table
+    //of a DiningHall does not need room for the TIDs of the other tables.
+    //Lowered when a recycled TID below it joins (see lowerBase()): so the
+    //seat of a philosopher who waits is looked up again from their TID.
+    private int tidBase = 0;
     
-    //Task 5: Map philosopher TIDs to seats at the table
-    private HashMap<Integer, Integer> assignedSeats;
+    //Task 3: How chopsticks are handed out: by the shuffled priorities, or
+    //so that nobody is passed over more than a few times (see
+    //arbitrateFairly()). Then each seat counts the meals its neighbours
+    //started while it was hungry, up to MAX_BYPASSES.
+    enum Arbitration {priority, fair};
+    static final int MAX_BYPASSES = 2;
+    private final boolean fair;
+    private int nextTicket = 0;
+    private byte[] bypasses;
     
-    //Task 6: Pepper shakers
-    int peppers = 0;
-    final int MAX_PEPPERS = 2;
-    private Condition pepper;
+    //Philosophers waiting for their chopsticks, by seat. Whoever makes one
+    //of them eat hands the chopsticks over there and then: the waiter is
+    //put on the pending list, to be granted and unparked once the lock is
+    //released (see unlockAndWake()). So the waiter never takes the lock
+    //again, and nobody is woken up to find they can not eat yet. A waiter
+    //with a continuation has it run instead (see pickUpLater()). Indexed
+    //like the seats, and grown with them; waiters counts the non-null ones.
+    private Waiter[] waiting;
+    private int waiters = 0;
+    private Waiter pending = null;
+    //The waiter each seat parks with, reused from one wait to the next
+    //(see waiterFor()), which also keeps what the acquisition learnt about
+    //the seat. A new one for every philosopher who sits down.
+    private Waiter[] parked;
+    
+    private static final class Waiter
+    {
+        Thread thread;
+        final Runnable then;
+        volatile boolean granted = false;
+        Waiter next;
+        //Who waits, and the single chopstick check() gave them meanwhile
+        //if any, logged once the lock is released (see tookOne())
+        int tid;
+        Status took;
+        int tookSeat;
+        //spin: how many times this seat spins, only read and written by
+        //whoever sits there (see spin())
+        int spins = SPIN ? MIN_SPINS : 0;
+        //adaptive: when the seat's current meal started, 0 if it is not
+        //timed, set by whoever eats there once they have their chopsticks
+        volatile long eatingSince = 0;
+        //adaptive: how long the seat's meals took lately, a moving average
+        //in nanoseconds. Only touched while holding the lock.
+        int meanMeal = 0;
+        //adaptive: spinning's back-off (see spinFor()), only read and
+        //written by whoever sits there
+        int spinBackoff = 0;
+        int spinSkips = 0;
+        
+        Waiter(Runnable then)
+        {
+            this.then = then;
+        }
+    }
+    
+    //What a hungry philosopher who can not eat yet does until they are
+    //granted their chopsticks, before parking (-Ddining.acquisition):
+    //  park      nothing, they park right away (the default)
+    //  spin      spins, as many times as their grants have been taking:
+    //            doubled when a spin got the chopsticks, halved when it
+    //            did not
+    //  adaptive  spins for as long as the neighbours they wait on usually
+    //            eat, if that is shorter than parking and being unparked,
+    //            and while spinning pays (see spinWindow())
+    //A single core never spins, the granter can not run meanwhile.
+    enum Acquisition {park, spin, adaptive};
+    private final Acquisition acquisition;
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final boolean SPIN = CORES > 1;
+    //spin: bounds of a seat's number of spins, kept on its Waiter. At
+    //most about as long as a park and unpark take.
+    private static final int MIN_SPINS = 16;
+    private static final int MAX_SPINS = 1 << 10;
+    //adaptive: each seat's Waiter times its meals, outside the lock, and
+    //keeps how long they took lately. Past MAX_SPIN_NANOS parking is
+    //cheaper, and meals not timed yet get MIN_SPIN_NANOS. At most
+    //MAX_SPINNERS spin at once, so that the philosophers who eat, and will
+    //grant the chopsticks, keep a core. Not shown to hand chopsticks over
+    //any faster than parking yet: it was only measured on a single core.
+    static final long MIN_SPIN_NANOS = 1_000;
+    static final long MAX_SPIN_NANOS = 20_000;
+    private static final int MAX_SPINNERS = Math.max(1, CORES / 2);
+    private final AtomicInteger spinners = new AtomicInteger();
+    //adaptive: after a spin that did not get the chopsticks, so many waits
+    //of that seat park right away, twice as many after every spin that
+    //misses again, up to MAX_SPIN_BACKOFF. E.g. when the cores are busy
+    //with others, and the granter can not run while we spin.
+    private static final int MAX_SPIN_BACKOFF = 1 << 10;
+    
+    //Task 6: Pepper shakers, and whatever else -Ddining.resources puts on
+    //the table. Shared by every engine.
+    static final int MAX_PEPPERS = 2;
+    final ResourceAllocator condiments = ResourceAllocator.fromProperties();
+    
+    //Asynchronous requests not completed yet: past the limit, new ones are
+    //rejected rather than queued (-Ddining.async.pending)
+    static final int MAX_ASYNC_REQUESTS = 1 << 16;
+    private final int asyncLimit = Integer.getInteger("dining.async.pending", MAX_ASYNC_REQUESTS);
+    private final AtomicInteger asyncRequests = new AtomicInteger();
+
+    //Every change of status is recorded here, and who eats may be dictated
+    //by an earlier recording. Null unless -Ddining.record/replay is set.
+    private ScheduleLog schedule = null;
+
+    //What only the seats above can do (see recordable() and
+    //continuations()): an engine keeping their own seat state has neither
+    private final boolean ownSeats;
+    private final Continuations continuations = new Continuations()
+    {
+        public boolean pickUp(int piTID, Runnable poThen)
+        {
+            return pickUpLater(piTID, poThen);
+        }
+
+        public boolean leaveTable(int threadID, Runnable poThen)
+        {
+            return leaveTableLater(threadID, poThen);
+        }
+    };
+
+    /**
+     * For alternative arbitration engines that keep their own seat state
+     * and only inherit talking and napping from here.
+     */
+    protected Monitor()
+    {
+        fair = false;
+        acquisition = Acquisition.park;
+        ownSeats = false;
+    }
 
     /**
      * Constructor
      */
     public Monitor(int piNumberOfPhilosophers) {
+        this(firstTIDs(piNumberOfPhilosophers));
+    }
+
+    /**
+     * Constructor, for a table whose philosophers have the given TIDs, in
+     * increasing order
+     */
+    public Monitor(int[] paiTIDs) {
+        this(paiTIDs, Arbitration.valueOf(System.getProperty("dining.arbitration", "priority")));
+    }
+
+    /**
+     * Constructor, arbitrating as given
+     */
+    public Monitor(int[] paiTIDs, Arbitration peArbitration) {
+        this(paiTIDs, peArbitration, Acquisition.valueOf(System.getProperty("dining.acquisition", "park")));
+    }
+
+    /**
+     * Constructor, arbitrating and waiting for the chopsticks as given
+     */
+    public Monitor(int[] paiTIDs, Arbitration peArbitration, Acquisition peAcquisition) {
         //Task 2: Set number of philosophers and initialize data
-        nbPhil = piNumberOfPhilosophers;
-        state = new ArrayList<Status>(nbPhil);
-        chopsticks = new ArrayList<Condition>(nbPhil);
+        nbPhil = 0;
+        fair = (peArbitration == Arbitration.fair);
+        acquisition = SPIN ? peAcquisition : Acquisition.park;
+        ownSeats = true;
         //Task 3: Priority array
-        priority = new ArrayList<Integer>(nbPhil);
-        talking = lock.newCondition();
-        napping = lock.newCondition();
-        for(int i = 0; i < nbPhil; i++)
+        int[] shuffled = shufflePriorities(paiTIDs.length);
+        if(!fair)
+            logPriorities(paiTIDs, shuffled);
+        //Task 5: Assign seats based on TID for each philosopher
+        if(paiTIDs.length > 0)
         {
-            state.add(Status.full);
-            chopsticks.add(lock.newCondition());
-            
-            //Task 3: Assign the philosophers a priority equal to their index
-            priority.add(i);
+            tidBase = paiTIDs[0] - 1;
+            grow(paiTIDs[paiTIDs.length - 1] - tidBase + 1);
         }
-        
-        //Task 3: Randomize the priority of each philosopher
-        Random random = new Random(64); //Seeded for testing
-        for(int i = 0; i < 100; i++)
+        //Then, assign the starting philosophers to the seat corresponding
+        //to their TID
+        for(int i = 0; i < paiTIDs.length; i++)
         {
-            int a = (int)(random.nextDouble()*nbPhil);
-            int b = (int)(random.nextDouble()*nbPhil);
-            int temp = priority.get(a);
-            priority.set(a, priority.get(b));
-            priority.set(b, temp);
+            seat(paiTIDs[i], shuffled[i], 0);
         }
-        for(int i = 0; i < nbPhil; i++)
+    }
+
+    /**
+     * The TIDs of the philosophers sitting down at the start: 1 to n
+     */
+    static int[] firstTIDs(int piNumberOfPhilosophers)
+    {
+        int[] tids = new int[piNumberOfPhilosophers];
+        for(int i = 0; i < piNumberOfPhilosophers; i++)
         {
-            System.out.println("Philosopher " + (i+1) + " has priority " + priority.get(i));
-        }        
-        //Task 5: Assign seats based on TID for each philosopher
-        assignedSeats = new HashMap<Integer, Integer>();
-        //Then, assign the starting philosophers to the seat corresponding
-        //to their TID
-        for(int i = 0; i < nbPhil; i++)
+            tids[i] = i + 1;
+        }
+        return tids;
+    }
+    
+    /**
+     * Task 3:
+     * Assigns the philosophers a priority equal to their index, then
+     * randomizes it. Shared by all the arbitration engines (and the
+     * simulation) so that they grant single chopsticks in the same order.
+     */
+    static int[] shufflePriorities(int piNumberOfPhilosophers)
+    {
+        int[] priority = new int[piNumberOfPhilosophers];
+        for(int i = 0; i < piNumberOfPhilosophers; i++)
         {
-            assignedSeats.put(i + 1, i);
+            priority[i] = i;
         }
         
-        //Task 6: Pepper shakers
-        pepper = lock.newCondition();
+        Random random = new Random(64); //Seeded for testing
+        for(int i = 0; i < 100 && piNumberOfPhilosophers > 0; i++)
+        {
+            int a = (int)(random.nextDouble()*piNumberOfPhilosophers);
+            int b = (int)(random.nextDouble()*piNumberOfPhilosophers);
+            int temp = priority[a];
+            priority[a] = priority[b];
+            priority[b] = temp;
+        }
+        return priority;
+    }
+    
+    static void logPriorities(int[] paiTIDs, int[] priority)
+    {
+        for(int i = 0; i < priority.length; i++)
+        {
+            EventLog.log(EventLog.PRIORITY, paiTIDs[i], i, priority[i]);
+        }
+    }
+
+    /**
+     * @return How to record or replay the order philosophers eat in, null
+     * if there is no such order: at any engine but this one, and at a
+     * DiningHall
+     */
+    public Recordable recordable()
+    {
+        return ownSeats ? poSchedule -> schedule = poSchedule : null;
+    }
+
+    /**
+     * @return How to hand chopsticks to continuations, null if they can
+     * only be handed to parked threads: at any engine but this one (alone
+     * or at the tables of a DiningHall)
+     */
+    public Continuations continuations()
+    {
+        return ownSeats ? continuations : null;
     }
 
     /*
@@ -105,72 +312,491 @@ public class Monitor {
 	 * User-defined monitor procedures
 	 * -------------------------------
      */
-    //Task 2: Procedures for getting the left and right philosopher
-    private int left(int id)
+    /**
+     * Task 2:
+     * Checks if the philosopher at the given seat can
+     * pick up the chopsticks and eat. Allocation-free.
+     */
+    private void check(int seat)
     {
-        return (id > 0) ? id - 1 : nbPhil - 1;
+        int l = left[seat];
+        int r = right[seat];
+        Status current = STATUSES[state[seat]];
+        Status next = fair
+                ? arbitrateFairly(current, STATUSES[state[l]], STATUSES[state[r]],
+                        priority[seat], priority[l], priority[r],
+                        bypasses[seat], bypasses[l], bypasses[r])
+                : arbitrate(current, STATUSES[state[l]], STATUSES[state[r]],
+                        priority[seat], priority[l], priority[r]);
+        //Replaying: only whoever ate next in the recording may take
+        //chopsticks, so that nobody else holds one they need
+        if(schedule != null && !schedule.mayEat(seat + tidBase))
+            next = current;
+        if(next == current)
+            return;
+        //Logged and counted once the lock is released: by whoever grants
+        //the waiter their chopsticks, or by the philosopher themselves when
+        //their own call got them one (see tookOne())
+        if(next != Status.eating && waiting[seat] != null)
+        {
+            waiting[seat].took = next;
+            waiting[seat].tookSeat = seat;
+        }
+        setState(seat, next);
+        if(next == Status.eating)
+            grant(seat);
+        if(next == Status.eating && fair)
+            passOver(seat);
+        if(next == Status.eating && schedule != null && schedule.isReplaying())
+        {
+            schedule.ate(seat + tidBase);
+            wakeNextInSchedule();
+        }
     }
-    
-    private int right(int id)
+
+    /**
+     * Changes the status of a seat, and records it if need be
+     */
+    private void setState(int seat, Status status)
+    {
+        state[seat] = (byte) status.ordinal();
+        transitions++;
+        if(schedule != null)
+            schedule.record(seat + tidBase, status.ordinal());
+    }
+
+    /**
+     * Replaying: lets whoever eats next in the recording eat, if they are
+     * waiting and can
+     */
+    private void wakeNextInSchedule()
     {
-        return (id < nbPhil - 1) ? id + 1 : 0;
+        int seat = schedule.next() - tidBase;
+        if(seat > 0 && seat < state.length && left[seat] != 0)
+            check(seat);
     }
+
+    private boolean is(int seat, Status status)
+    {
+        return state[seat] == status.ordinal();
+    }
+
+    /**
+     * Takes the lock, timing the wait if the event is recorded
+     */
+    private void lock(MonitorEvent event)
+    {
+        if(event == null || !event.isEnabled())
+        {
+            lock.lock();
+            return;
+        }
+        long since = System.nanoTime();
+        lock.lock();
+        event.locked(since, lock.getQueueLength(), transitions);
+    }
+
+    /**
+     * Same as unlockAndWake(), timing the hold if the event is recorded
+     */
+    private void unlockAndWake(MonitorEvent event)
+    {
+        if(event != null && event.isEnabled())
+            event.unlocking(waiters, transitions);
+        unlockAndWake();
+    }
+
     /**
      * Task 2:
-     * Checks if the philosopher with the given id can
-     * pick up the chopsticks and eat
+     * The philosopher at the given seat just started eating: if they are
+     * waiting, the chopsticks are theirs, and they are granted and unparked
+     * as soon as the lock is released. Called while holding the lock.
      */
-    private void check(int id)
+    private void grant(int seat)
     {
-        if(bothChopsticksFree(id)
-            && iWantToEat(id))
+        Waiter waiter = waiting[seat];
+        if(waiter != null)
         {
-            state.set(id, Status.eating);
+            waiting[seat] = null;
+            waiters--;
+            waiter.next = pending;
+            pending = waiter;
         }
-        else if(rightChopstickFree(id)
-                && haveHigherPriority(id, right(id))
-                && iWantToEat(id))
+    }
+
+    /**
+     * Task 2:
+     * A philosopher has one request waiting for their chopsticks at most: a
+     * second one would take the place of the first, which would then never
+     * be granted. Called while holding the lock, before they become hungry.
+     */
+    private void notWaiting(int piTID, int seat)
+    {
+        if(waiting[seat] != null)
+            throw new IllegalStateException("Philosopher " + piTID + " already waits for their chopsticks");
+    }
+
+    /**
+     * Task 2:
+     * The philosopher at the given seat waits for their chopsticks, until
+     * grant(). Called while holding the lock.
+     */
+    private void await(int seat, Waiter waiter)
+    {
+        waiter.tid = seat + tidBase;
+        waiter.took = null;
+        waiting[seat] = waiter;
+        waiters++;
+    }
+
+    /**
+     * Task 2:
+     * The waiter the philosopher at the given seat parks with, ready for a
+     * new wait. Called while holding the lock, by that philosopher.
+     */
+    private Waiter waiterFor(int seat)
+    {
+        Waiter waiter = parked[seat];
+        //A recycled TID may be someone else's thread
+        waiter.thread = Thread.currentThread();
+        waiter.granted = false;
+        return waiter;
+    }
+
+    /**
+     * Logs and counts a single chopstick taken, if the status is one. Called
+     * once the lock is released.
+     */
+    private static void tookOne(int piTID, int seat, Status status)
+    {
+        if(status == Status.hasRightChopstick)
+            EventLog.log(EventLog.TOOK_RIGHT_CHOPSTICK, piTID, seat);
+        else if(status == Status.hasLeftChopstick)
+            EventLog.log(EventLog.TOOK_LEFT_CHOPSTICK, piTID, seat);
+        else
+            return;
+        DiningMetrics.oneChopstick(piTID);
+    }
+
+    /**
+     * Releases the lock, then grants and unparks everyone whose chopsticks
+     * were handed over while it was held, so that they do not wake up only
+     * to block on it
+     */
+    private void unlockAndWake()
+    {
+        Waiter waiter = pending;
+        pending = null;
+        lock.unlock();
+        while(waiter != null)
         {
-            System.out.println("Philosopher " + (id+1) + " has taken the right chopstick");
-            state.set(id, Status.hasRightChopstick);
+            //Read before granting: from then on, the waiter is free to go,
+            //and to wait again with the same Waiter
+            Waiter next = waiter.next;
+            Thread thread = waiter.thread;
+            Runnable then = waiter.then;
+            tookOne(waiter.tid, waiter.tookSeat, waiter.took);
+            waiter.granted = true;
+            if(then != null)
+                then.run();
+            else
+                LockSupport.unpark(thread);
+            waiter = next;
         }
-        else if (leftChopstickFree(id)
-                && haveHigherPriority(id, left(id))
-                && iWantToEat(id))
+    }
+
+    /**
+     * Waits, without the lock, until the given philosopher has been
+     * granted their chopsticks: spins a while, as acquisition says,
+     * then parks. The waiter must have been put in waiting, and the lock
+     * released.
+     *
+     * @param plSpinNanos How long to spin for, adaptive only (see
+     * spinWindow())
+     */
+    private void awaitChopsticks(int piTID, Waiter waiter, long plSpinNanos)
+    {
+        if(acquisition == Acquisition.spin && spin(waiter))
+            return;
+        if(plSpinNanos > 0 && spinFor(waiter, plSpinNanos))
+            return;
+
+        while(!waiter.granted)
         {
-            System.out.println("Philosopher " + (id + 1) + " has taken the left chopstick");
-            state.set(id, Status.hasLeftChopstick);
+            if(schedule == null || !schedule.isReplaying())
+            {
+                LockSupport.park(this);
+                continue;
+            }
+            //Replaying: if whoever is next never comes, move on
+            int iPosition = schedule.position();
+            LockSupport.parkNanos(this, schedule.patienceNanos());
+            if(waiter.granted)
+                return;
+            lock.lock();
+            try{
+                //Still waiting, not merely not granted yet
+                if(waiting[piTID - tidBase] == waiter && schedule.position() == iPosition)
+                {
+                    schedule.skip();
+                    wakeNextInSchedule();
+                    check(piTID - tidBase);
+                }
+            }
+            finally
+            {
+                unlockAndWake();
+            }
         }
     }
-    
-    //Task 2: Split check into smaller methods
-    private boolean bothChopsticksFree(int id)
+
+    /**
+     * @return How hungry philosophers wait for their chopsticks: park on a
+     * single core, whatever was asked for
+     */
+    Acquisition acquisition()
     {
-        return state.get(left(id)) != Status.eating
-            && state.get(left(id)) != Status.hasRightChopstick
-            && state.get(right(id)) != Status.eating;
+        return acquisition;
     }
-    
-    private boolean iWantToEat(int id)
+
+    /**
+     * Spins as many times as the seat's last grants took
+     * @return Whether the chopsticks were granted meanwhile
+     */
+    private boolean spin(Waiter waiter)
     {
-        return state.get(id) == Status.hungry
-            || state.get(id) == Status.hasRightChopstick
-            || state.get(id) == Status.hasLeftChopstick;
+        int limit = waiter.spins;
+        for(int i = 0; i < limit; i++)
+        {
+            if(waiter.granted)
+            {
+                waiter.spins = Math.min(MAX_SPINS, limit * 2);
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        waiter.spins = Math.max(MIN_SPINS, limit / 2);
+        return false;
     }
-    
-    private boolean rightChopstickFree(int id)
+
+    /**
+     * Spins for so long, unless MAX_SPINNERS already do. Backs off if the
+     * chopsticks did not come, see MAX_SPIN_BACKOFF.
+     * @return Whether the chopsticks were granted meanwhile
+     */
+    private boolean spinFor(Waiter waiter, long plNanos)
     {
-        return state.get(right(id)) != Status.eating;
+        if(spinners.incrementAndGet() > MAX_SPINNERS)
+        {
+            spinners.decrementAndGet();
+            return false;
+        }
+        long lUntil = System.nanoTime() + plNanos;
+        boolean bGranted = waiter.granted;
+        while(!bGranted && System.nanoTime() - lUntil < 0)
+        {
+            //nanoTime() costs more than a spin: read it every few
+            for(int i = 0; i < 32 && !bGranted; i++)
+            {
+                Thread.onSpinWait();
+                bGranted = waiter.granted;
+            }
+        }
+        spinners.decrementAndGet();
+        if(bGranted)
+            waiter.spinBackoff = 0;
+        else
+        {
+            waiter.spinBackoff = Math.min(MAX_SPIN_BACKOFF, waiter.spinBackoff * 2 + 1);
+            waiter.spinSkips = waiter.spinBackoff;
+        }
+        return bGranted;
     }
-    
-    private boolean leftChopstickFree(int id)
+
+    /**
+     * How long the philosopher at the given seat, who can not eat yet, may
+     * expect to wait: what is left of the meal of a neighbour who eats,
+     * by how long their meals took lately, or twice a meal for a hungry
+     * neighbour who may eat first. 0 to park right away, when it is
+     * more than MAX_SPIN_NANOS, spinning is backing off, the threads queued
+     * for the lock would leave the spinner no core, or adaptive is not the
+     * acquisition. Called while holding the lock.
+     */
+    private long spinWindow(int seat)
     {
-        return state.get(left(id)) != Status.eating;
+        if(acquisition != Acquisition.adaptive)
+            return 0;
+        Waiter mine = parked[seat];
+        if(mine.spinSkips > 0)
+        {
+            mine.spinSkips--;
+            return 0;
+        }
+        if(lock.getQueueLength() >= CORES)
+            return 0;
+        long lNow = System.nanoTime();
+        long lWindow = Math.max(waitFor(left[seat], lNow), waitFor(right[seat], lNow));
+        return (lWindow <= MAX_SPIN_NANOS) ? Math.max(lWindow, MIN_SPIN_NANOS) : 0;
     }
-    
-    private boolean haveHigherPriority(int myId, int theirId)
+
+    /**
+     * How long a neighbour may keep the chopstick they share with a
+     * philosopher who waits for it
+     */
+    private long waitFor(int neighbour, long plNow)
+    {
+        Waiter theirs = parked[neighbour];
+        if(is(neighbour, Status.eating))
+        {
+            //Not timed (yet): a whole meal may be left
+            long lSince = theirs.eatingSince;
+            if(lSince == 0)
+                return theirs.meanMeal;
+            //Overdue: the meal is a long one, give it another average
+            long lLeft = theirs.meanMeal - (plNow - lSince);
+            return (lLeft > 0) ? lLeft : theirs.meanMeal;
+        }
+        if(is(neighbour, Status.full))
+            return 0;
+        //Hungry, they may eat first
+        return 2L * theirs.meanMeal;
+    }
+
+    /**
+     * The philosopher at the given seat started eating, at the given time
+     * (see startedEating()), and is done at plDone: their meal counts for
+     * a quarter of how long the next ones are expected to take. Meals of
+     * continuations are not timed. Called while holding the lock.
+     */
+    private void ate(int seat, long plDone)
+    {
+        Waiter mine = parked[seat];
+        long lSince = mine.eatingSince;
+        if(plDone == 0 || lSince == 0)
+            return;
+        mine.eatingSince = 0;
+        long lMeal = Math.min(Integer.MAX_VALUE, plDone - lSince);
+        mine.meanMeal += (int) ((lMeal - mine.meanMeal) >> 2);
+    }
+
+    /**
+     * adaptive: the philosopher whose seat has the given Waiter has their
+     * chopsticks. Called without the lock, so that the clock is not read
+     * while holding it.
+     */
+    private void startedEating(Waiter mine)
     {
-        return priority.get(myId) > priority.get(theirId);
+        if(acquisition == Acquisition.adaptive)
+            mine.eatingSince = System.nanoTime();
+    }
+
+    /**
+     * Task 2:
+     * The rules of check(): what the status of a philosopher becomes, given
+     * their neighbours' status and the priorities. Shared by every
+     * arbitration engine and by the simulation.
+     */
+    static Status arbitrate(Status me, Status left, Status right,
+            int piMyPriority, int piLeftPriority, int piRightPriority)
+    {
+        boolean iWantToEat = me == Status.hungry
+            || me == Status.hasRightChopstick
+            || me == Status.hasLeftChopstick;
+        if(!iWantToEat)
+            return me;
+        
+        //Both chopsticks free
+        if(left != Status.eating
+            && left != Status.hasRightChopstick
+            && right != Status.eating)
+            return Status.eating;
+        
+        //One chopstick free, and we have priority over who shares it
+        if(right != Status.eating && piMyPriority > piRightPriority)
+            return Status.hasRightChopstick;
+        if(left != Status.eating && piMyPriority > piLeftPriority)
+            return Status.hasLeftChopstick;
+        
+        return me;
+    }
+
+    /**
+     * Task 3:
+     * The fair rules. A philosopher never takes a single chopstick: they
+     * eat once neither neighbour eats, unless a neighbour is urgent, i.e.
+     * hungry and passed over MAX_BYPASSES times (their neighbours started
+     * that many meals since they became hungry). An urgent neighbour goes
+     * first, and between two urgent ones, whoever became hungry first (has
+     * the older ticket; tickets are handed out in increasing order and
+     * compared so that they may wrap around).
+     *
+     * Bound: while P is hungry, P's neighbours start at most
+     * MAX_BYPASSES + 2 meals. After MAX_BYPASSES of them P is urgent, and a
+     * neighbour N can only start eating if N is urgent too, with an older
+     * ticket. Once N has eaten, N is no longer urgent until P has eaten.
+     * So each neighbour eats at most once more.
+     *
+     * Nobody waits forever: the urgent philosopher with the oldest ticket
+     * only waits for neighbours who are eating, and if nobody is urgent,
+     * nobody waits for anything but eating neighbours. Unlike first come,
+     * first served, a philosopher only holds the others back once urgent,
+     * so waits do not chain along the table and the wait does not grow
+     * with the size of the table.
+     */
+    static Status arbitrateFairly(Status me, Status left, Status right,
+            int piMyTicket, int piLeftTicket, int piRightTicket,
+            int piMyBypasses, int piLeftBypasses, int piRightBypasses)
+    {
+        if(me != Status.hungry)
+            return me;
+        if(left == Status.eating || right == Status.eating)
+            return me;
+        if(goesFirst(left, piLeftTicket, piLeftBypasses, piMyTicket, piMyBypasses)
+                || goesFirst(right, piRightTicket, piRightBypasses, piMyTicket, piMyBypasses))
+            return me;
+        return Status.eating;
+    }
+
+    /**
+     * Task 3:
+     * Whether a neighbour goes before a hungry philosopher, by the fair
+     * rules
+     */
+    private static boolean goesFirst(Status neighbour, int piTheirTicket, int piTheirBypasses,
+            int piMyTicket, int piMyBypasses)
+    {
+        if(neighbour != Status.hungry || piTheirBypasses < MAX_BYPASSES)
+            return false;
+        return piMyBypasses < MAX_BYPASSES || piTheirTicket - piMyTicket < 0;
+    }
+
+    /**
+     * Task 3:
+     * A philosopher becomes hungry, and takes a ticket if that matters
+     */
+    private void becomeHungry(int seat)
+    {
+        if(fair)
+        {
+            priority[seat] = nextTicket++;
+            bypasses[seat] = 0;
+        }
+        setState(seat, Status.hungry);
+    }
+
+    /**
+     * Task 3:
+     * The philosopher at the given seat started a meal: their hungry
+     * neighbours were passed over once more
+     */
+    private void passOver(int seat)
+    {
+        int l = left[seat];
+        int r = right[seat];
+        if(is(l, Status.hungry) && bypasses[l] < MAX_BYPASSES)
+            bypasses[l]++;
+        if(r != l && is(r, Status.hungry) && bypasses[r] < MAX_BYPASSES)
+            bypasses[r]++;
     }
     
     /**
@@ -179,55 +805,156 @@ public class Monitor {
      * Else forces the philosopher to wait()
      */
     public void pickUp(final int piTID) {
+        MonitorEvent event = MonitorEvent.start("pickUp", engine, piTID);
         //Task2: Implementation of pickUp()
-        lock.lock();
-        
-        //Task 5: Get the philosopher's assigned seat
-        int id = getSeat(piTID);
+        lock(event);
         
+        long lHungrySince = 0;
+        long lSpinNanos = 0;
+        Waiter waiter = null;
+        Waiter mine = null;
+        int seat = EventLog.NO_SEAT;
+        Status checked = null;
         try{
-            state.set(id, Status.hungry);
-            check(id);
-            if(state.get(id) == Status.hungry)
-            {
-                System.out.println("Philosopher " + (piTID) + " is waiting to eat.");
-                chopsticks.get(id).await();
-            }
-            else if (state.get(id) == Status.hasRightChopstick)
+            //Task 5: Get the philosopher's assigned seat
+            seat = getSeat(piTID);
+            MonitorEvent.seat(event, seat);
+            notWaiting(piTID, seat);
+            mine = parked[seat];
+            
+            becomeHungry(seat);
+            check(seat);
+            checked = STATUSES[state[seat]];
+            if(checked != Status.eating)
             {
-                System.out.println("Philosopher " + (piTID) + " has taken the right chopstick");
-                chopsticks.get(id).await();
+                //Whoever makes us eat hands us the chopsticks
+                lHungrySince = DiningMetrics.now();
+                waiter = waiterFor(seat);
+                await(seat, waiter);
+                lSpinNanos = spinWindow(seat);
             }
-            else if (state.get(id) == Status.hasLeftChopstick)
+            else if(left[seat] != seat)
             {
-                System.out.println("Philosopher " + piTID + " has taken the left chopstick");
-                chopsticks.get(id).await();
+                //Alone at the table, we are our own neighbour
+                assert(!is(left[seat], Status.eating)
+                        && !is(left[seat], Status.hasRightChopstick));
+                assert(!is(right[seat], Status.eating));
             }
+        }
+        finally
+        {
+            unlockAndWake(event);
+        }
+        if(checked == Status.hungry)
+            EventLog.log(EventLog.WAITING_TO_EAT, piTID, seat);
+        else
+            tookOne(piTID, seat, checked);
+        if(waiter != null)
+        {
+            awaitChopsticks(piTID, waiter, lSpinNanos);
+            DiningMetrics.hungry(piTID, lHungrySince);
+        }
+        startedEating(mine);
+        
+        //Task 6: Grab a pepper shaker, without holding the table
+        takeCondiments(piTID);
+        MonitorEvent.end(event);
+    }
+
+    /**
+     * See Continuations.pickUp()
+     */
+    private boolean pickUpLater(final int piTID, final Runnable poThen)
+    {
+        MonitorEvent event = MonitorEvent.start("pickUp", engine, piTID);
+        lock(event);
+        boolean bEats;
+        int seat = EventLog.NO_SEAT;
+        Status checked = null;
+        try{
+            seat = getSeat(piTID);
+            MonitorEvent.seat(event, seat);
+            //E.g. a cancelled request whose chopsticks are still being put back
+            if(is(seat, Status.eating))
+                throw new IllegalStateException("Philosopher " + piTID + " already has their chopsticks");
+            notWaiting(piTID, seat);
             
-            //Task 6: Grab a pepper shaker
-            peppers++;
-            if(peppers > MAX_PEPPERS)
+            becomeHungry(seat);
+            check(seat);
+            checked = STATUSES[state[seat]];
+            bEats = checked == Status.eating;
+            if(!bEats)
             {
-                System.out.println("Philosopher " + piTID + " is waiting for a pepper shaker");
-                pepper.await();
+                long lHungrySince = DiningMetrics.now();
+                await(seat, new Waiter(() -> {
+                    DiningMetrics.hungry(piTID, lHungrySince);
+                    if(takeCondiments(piTID, poThen))
+                        poThen.run();
+                }));
             }
-            System.out.println("Philosopher " + piTID + " has taken a pepper shaker");
-            
-            assert(state.get(id) == Status.eating);
-            assert(state.get(left(id)) != Status.eating
-                    && state.get(left(id)) != Status.hasRightChopstick);
-            assert(state.get(right(id)) != Status.eating);
         }
-        catch (InterruptedException e)
+        finally
         {
-            System.err.println("Monitor.pickUp():");
-            DiningPhilosophers.reportException(e);
-            System.exit(1);
+            unlockAndWake(event);
         }
-        finally
+        if(checked == Status.hungry)
+            EventLog.log(EventLog.WAITING_TO_EAT, piTID, seat);
+        else
+            tookOne(piTID, seat, checked);
+        MonitorEvent.end(event);
+        return bEats && takeCondiments(piTID, poThen);
+    }
+
+    /**
+     * Task 6:
+     * Takes a pepper shaker (and one of every other condiment), waiting
+     * for them if need be. Called by every engine once the philosopher has
+     * their chopsticks, while holding no lock.
+     */
+    protected void takeCondiments(final int piTID)
+    {
+        if(!condiments.tryAcquireMeal())
         {
-            lock.unlock();
+            EventLog.log(EventLog.WAITING_FOR_PEPPER, piTID);
+            long lSince = DiningMetrics.now();
+            condiments.acquireMeal();
+            DiningMetrics.pepper(piTID, lSince);
         }
+        EventLog.log(EventLog.TOOK_PEPPER, piTID);
+    }
+
+    /**
+     * Same as takeCondiments(), without blocking
+     *
+     * @param poThen Run by whoever gives the pepper back, if it is not
+     * there right away. Must not block.
+     * @return Whether the philosopher got the pepper right away, in which
+     * case poThen is not run
+     */
+    protected boolean takeCondiments(final int piTID, final Runnable poThen)
+    {
+        if(condiments.tryAcquireMeal())
+        {
+            EventLog.log(EventLog.TOOK_PEPPER, piTID);
+            return true;
+        }
+        EventLog.log(EventLog.WAITING_FOR_PEPPER, piTID);
+        long lSince = DiningMetrics.now();
+        if(!condiments.acquireMeal(() -> {
+            DiningMetrics.pepper(piTID, lSince);
+            EventLog.log(EventLog.TOOK_PEPPER, piTID);
+            poThen.run();
+        }))
+            return false;
+        DiningMetrics.pepper(piTID, lSince);
+        EventLog.log(EventLog.TOOK_PEPPER, piTID);
+        return true;
+    }
+
+    protected void putDownCondiments(final int piTID)
+    {
+        condiments.releaseMeal();
+        EventLog.log(EventLog.PUT_DOWN_PEPPER, piTID);
     }
 
     /**
@@ -236,26 +963,29 @@ public class Monitor {
      * and let others know they are available.
      */
     public void putDown(final int piTID) {
-        lock.lock();
-        
-        int id = getSeat(piTID);
-
-        state.set(id, Status.full);
-        
+        MonitorEvent event = MonitorEvent.start("putDown", engine, piTID);
         //Task 6: Put down a pepper shaker
-        peppers--;
-        System.out.println("Philosopher " + piTID + " puts down a pepper shaker");
-        pepper.signal();
+        putDownCondiments(piTID);
+        long lDone = (acquisition == Acquisition.adaptive) ? System.nanoTime() : 0;
         
-        check(left(id));
-        if(state.get(left(id)) == Status.eating)
-            chopsticks.get(left(id)).signal();
+        lock(event);
         
-        check(right(id));
-        if(state.get(right(id)) == Status.eating)
-            chopsticks.get(right(id)).signal();
+        try{
+            int seat = getSeat(piTID);
+            MonitorEvent.seat(event, seat);
 
-        lock.unlock();
+            ate(seat, lDone);
+            setState(seat, Status.full);
+            
+            check(left[seat]);
+            check(right[seat]);
+        }
+        finally
+        {
+            unlockAndWake(event);
+        }
+        DiningMetrics.meal(piTID);
+        MonitorEvent.end(event);
     }
 
     /**
@@ -264,19 +994,21 @@ public class Monitor {
      * eating).
      */
     public void requestTalk() {
-        //If a philosopher is talking, wait for them to finish, then talk.
-        lock.lock();
+        requestTalk(0);
+    }
+
+    /**
+     * Same as requestTalk(), with the time spent waiting to talk counted
+     * against the given philosopher
+     */
+    public void requestTalk(final int piTID) {
+        MonitorEvent event = MonitorEvent.start("requestTalk", engine, piTID);
+        //If a philosopher is talking or napping, wait for them to finish,
+        //then talk.
         try
         {
-            philosophersWaitingToTalk++;
-            while(aPhilosopherIsTalking || philosophersNapping > 0)
-            {
-                talking.await();
-            }
-            philosophersWaitingToTalk--;
-            aPhilosopherIsTalking = true;
-            assert(aPhilosopherIsTalking);
-            assert(philosophersNapping == 0);
+            talkNap.requestTalk(piTID);
+            MonitorEvent.end(event);
         }
         catch (InterruptedException e)
         {
@@ -284,10 +1016,22 @@ public class Monitor {
             DiningPhilosophers.reportException(e);
             System.exit(1);
         }
-        finally
-        {
-            lock.unlock();
-        }
+    }
+
+    /**
+     * Same as requestTalk(), without blocking
+     *
+     * @param poThen Run by whoever lets the philosopher talk, if they may
+     * not right away. Must not block.
+     * @return Whether the philosopher may talk right away, in which case
+     * poThen is not run
+     */
+    public boolean requestTalk(final int piTID, final Runnable poThen)
+    {
+        MonitorEvent event = MonitorEvent.start("requestTalk", engine, piTID);
+        boolean bTalks = talkNap.requestTalk(piTID, poThen);
+        MonitorEvent.end(event);
+        return bTalks;
     }
 
     /**
@@ -296,17 +1040,17 @@ public class Monitor {
      * talking.
      */
     public void endTalk() {
-        //A philosopher is no longer talking. Notify one waiting philosopher
-        //that they can start talking.
-        lock.lock();
-
-        aPhilosopherIsTalking = false;
-        if(philosophersWaitingToTalk > 0)
-            talking.signal();
-        else
-            napping.signalAll();
+        //The nappers who waited for this talk go first, then the next talker
+        talkNap.endTalk();
+    }
 
-        lock.unlock();
+    /**
+     * Same as endTalk(), for the given philosopher
+     */
+    public void endTalk(final int piTID) {
+        MonitorEvent event = MonitorEvent.start("endTalk", engine, piTID);
+        endTalk();
+        MonitorEvent.end(event);
     }
     
     /**
@@ -315,25 +1059,34 @@ public class Monitor {
      */
     public void requestNap()
     {
-        lock.lock();
-        try
-        {
-            while(aPhilosopherIsTalking)
-            {
-                napping.await();
-            }
-            philosophersNapping++;
-            assert(philosophersNapping > 0);
-            assert(aPhilosopherIsTalking == false);
-        } catch(InterruptedException e)
-        {
-            System.err.println("Monitor.requestTalk():");
-            DiningPhilosophers.reportException(e);
-            System.exit(1);
-        } finally 
-        {
-            lock.unlock();
-        }
+        requestNap(0);
+    }
+
+    /**
+     * Same as requestNap(), with the time spent waiting to nap counted
+     * against the given philosopher
+     */
+    public void requestNap(final int piTID)
+    {
+        MonitorEvent event = MonitorEvent.start("requestNap", engine, piTID);
+        talkNap.requestNap(piTID);
+        MonitorEvent.end(event);
+    }
+    
+    /**
+     * Same as requestNap(), without blocking
+     *
+     * @param poThen Run by whoever lets the philosopher nap, if they may
+     * not right away. Must not block.
+     * @return Whether the philosopher may nap right away, in which case
+     * poThen is not run
+     */
+    public boolean requestNap(final int piTID, final Runnable poThen)
+    {
+        MonitorEvent event = MonitorEvent.start("requestNap", engine, piTID);
+        boolean bNaps = talkNap.requestNap(piTID, poThen);
+        MonitorEvent.end(event);
+        return bNaps;
     }
     
     /**
@@ -342,12 +1095,17 @@ public class Monitor {
      */
     public void endNap()
     {
-        lock.lock();
-        philosophersNapping--;
-        if(philosophersNapping == 0)
-            talking.signal();
-        
-        lock.unlock();
+        endNap(0);
+    }
+    
+    /**
+     * Same as endNap(), for the given philosopher
+     */
+    public void endNap(final int piTID)
+    {
+        MonitorEvent event = MonitorEvent.start("endNap", engine, piTID);
+        talkNap.endNap(piTID);
+        MonitorEvent.end(event);
     }
     
     /**
@@ -355,29 +1113,173 @@ public class Monitor {
      */
     private int getSeat(int TID)
     {
-        return assignedSeats.get(TID);
+        int seat = TID - tidBase;
+        if(seat <= 0 || seat >= state.length || left[seat] == 0)
+            throw new IllegalArgumentException("Philosopher " + TID + " is not at the table");
+        return seat;
     }
     
     /**
      * Task 5:
-     * Allow a philosopher to join the table
+     * Makes room for the seats of the TIDs below piCapacity
      */
-    public void joinTable(int threadId)
+    private void grow(int piCapacity)
     {
-        lock.lock();
-        //This philosopher will sit at the last seat
-        state.add(Status.full);
-        
-        assignedSeats.put(threadId, nbPhil);
-        chopsticks.add(lock.newCondition());
-        priority.add(threadId);
-        
-        //There is now one more philosopher
+        if(state != null && piCapacity <= state.length)
+            return;
+        int iCapacity = (state == null) ? piCapacity : Math.max(piCapacity, state.length * 2);
+        if(state == null)
+        {
+            state = new byte[iCapacity];
+            priority = new int[iCapacity];
+            bypasses = new byte[iCapacity];
+            left = new int[iCapacity];
+            right = new int[iCapacity];
+            waiting = new Waiter[iCapacity];
+            parked = new Waiter[iCapacity];
+            return;
+        }
+        state = Arrays.copyOf(state, iCapacity);
+        priority = Arrays.copyOf(priority, iCapacity);
+        bypasses = Arrays.copyOf(bypasses, iCapacity);
+        left = Arrays.copyOf(left, iCapacity);
+        right = Arrays.copyOf(right, iCapacity);
+        waiting = Arrays.copyOf(waiting, iCapacity);
+        parked = Arrays.copyOf(parked, iCapacity);
+    }
+    
+    /**
+     * Task 5:
+     * Moves every seat up, so that the given TID, at or below tidBase, has
+     * one too: a TID recycled at a table of a DiningHall may be below the
+     * ones the table started with. Like grow(), makes room for at least as
+     * many seats again, so that a table does not move at every such join.
+     * @return How far the seats moved
+     */
+    private int lowerBase(int piTID)
+    {
+        int shift = Math.min(tidBase, Math.max(tidBase - piTID + 1, state.length));
+        int iCapacity = state.length + shift;
+        byte[] aState = new byte[iCapacity];
+        int[] aiPriority = new int[iCapacity];
+        byte[] aBypasses = new byte[iCapacity];
+        int[] aiLeft = new int[iCapacity];
+        int[] aiRight = new int[iCapacity];
+        Waiter[] aoWaiting = new Waiter[iCapacity];
+        Waiter[] aoParked = new Waiter[iCapacity];
+        System.arraycopy(state, 0, aState, shift, state.length);
+        System.arraycopy(priority, 0, aiPriority, shift, state.length);
+        System.arraycopy(bypasses, 0, aBypasses, shift, state.length);
+        System.arraycopy(waiting, 0, aoWaiting, shift, state.length);
+        System.arraycopy(parked, 0, aoParked, shift, state.length);
+        //The links are seats too, 0 still for an empty one
+        for(int seat = 0; seat < state.length; seat++)
+        {
+            if(left[seat] != 0)
+            {
+                aiLeft[seat + shift] = left[seat] + shift;
+                aiRight[seat + shift] = right[seat] + shift;
+            }
+        }
+        state = aState;
+        priority = aiPriority;
+        bypasses = aBypasses;
+        left = aiLeft;
+        right = aiRight;
+        waiting = aoWaiting;
+        parked = aoParked;
+        if(first != 0)
+            first += shift;
+        tidBase -= shift;
+        return shift;
+    }
+    
+    /**
+     * Task 5:
+     * Adds a seat for the philosopher to the right of the given seat, or
+     * after the last one if it is 0, in O(1). Any TID above 0 may sit.
+     */
+    private int seat(int piTID, int piPriority, int after)
+    {
+        if(piTID <= 0)
+            throw new IllegalArgumentException("Philosopher " + piTID + " can not sit at this table");
+        if(piTID <= tidBase)
+        {
+            int shift = lowerBase(piTID);
+            if(after != 0)
+                after += shift;
+        }
+        int seat = piTID - tidBase;
+        grow(seat + 1);
+        state[seat] = (byte) Status.full.ordinal();
+        priority[seat] = piPriority;
+        //A recycled TID: nothing of whoever sat here before is theirs
+        parked[seat] = new Waiter(null);
+        if(first == 0)
+        {
+            first = seat;
+            left[seat] = seat;
+            right[seat] = seat;
+        }
+        else
+        {
+            if(after == 0)
+                after = left[first];
+            int next = right[after];
+            left[seat] = after;
+            right[seat] = next;
+            right[after] = seat;
+            left[next] = seat;
+        }
         nbPhil++;
-        
-        //Let everyone know
-        System.out.println("Philosopher " + threadId + " has joined the table with priority " + threadId);
-        lock.unlock();
+        return seat;
+    }
+    
+    /**
+     * Task 5:
+     * Allow a philosopher to join the table, at the last seat
+     */
+    public void joinTable(int threadId)
+    {
+        joinTable(threadId, 0);
+    }
+    
+    /**
+     * Task 5:
+     * Allow a philosopher to join the table, next to the friend who invited
+     * them. The one to override, for the other engines.
+     * @param piHostTID Who invited them: they sit to their right if they are
+     * at this table, else at the last seat. 0 for nobody.
+     */
+    public void joinTable(int threadId, int piHostTID)
+    {
+        MonitorEvent event = MonitorEvent.start("joinTable", engine, threadId);
+        lock(event);
+        try{
+            int host = piHostTID - tidBase;
+            if(host <= 0 || host >= state.length || left[host] == 0)
+                host = 0;
+            int seat = seat(threadId, threadId, host);
+            MonitorEvent.seat(event, seat);
+            if(schedule != null)
+                schedule.record(threadId, ScheduleLog.JOINED);
+            
+            //Let everyone know
+            EventLog.log(EventLog.JOINED_TABLE, threadId, seat, threadId);
+            
+            //Our neighbours no longer sit next to each other: one of them may
+            //have waited for the other
+            if(left[seat] != seat)
+            {
+                check(left[seat]);
+                check(right[seat]);
+            }
+        }
+        finally
+        {
+            unlockAndWake(event);
+        }
+        MonitorEvent.end(event);
     }
     
     /**
@@ -387,42 +1289,302 @@ public class Monitor {
      */
     public void leaveTable(int threadID)
     {
-        lock.lock();
-        try
-        {
-            int id = getSeat(threadID);
+        MonitorEvent event = MonitorEvent.start("leaveTable", engine, threadID);
+        lock(event);
+        long lSpinNanos = 0;
+        Waiter waiter = null;
+        int seat = EventLog.NO_SEAT;
+        Status checked = null;
+        try{
+            seat = getSeat(threadID);
+            MonitorEvent.seat(event, seat);
+            notWaiting(threadID, seat);
 
             //Wait for my neighbors to finish eating
-            state.set(id, Status.hungry);
-            check(id);
-            if(state.get(id) == Status.hungry)
-                chopsticks.get(id).await();
-            
-            //Leave the table
-            state.remove(id);
-            chopsticks.remove(id);
-            nbPhil--;
-            
-            //Adjust map for accuracy
-            assignedSeats.remove(threadID);
-            for(int key : assignedSeats.keySet())
+            becomeHungry(seat);
+            check(seat);
+            checked = STATUSES[state[seat]];
+            if(checked == Status.eating)
+                leaveSeat(threadID, seat);
+            else
             {
-                int seat = assignedSeats.get(key);
-                if(seat > id)
-                    assignedSeats.put(key, seat - 1);
+                waiter = waiterFor(seat);
+                await(seat, waiter);
+                lSpinNanos = spinWindow(seat);
             }
+        }
+        finally
+        {
+            unlockAndWake(event);
+        }
+        tookOne(threadID, seat, checked);
+        if(waiter != null)
+        {
+            awaitChopsticks(threadID, waiter, lSpinNanos);
+            lock(event);
+            try{
+                leaveSeat(threadID, getSeat(threadID));
+            }
+            finally
+            {
+                unlockAndWake(event);
+            }
+        }
+        MonitorEvent.end(event);
+    }
+    
+    /**
+     * See Continuations.leaveTable()
+     */
+    private boolean leaveTableLater(int threadID, final Runnable poThen)
+    {
+        MonitorEvent event = MonitorEvent.start("leaveTable", engine, threadID);
+        lock(event);
+        boolean bLeaves;
+        int seat = EventLog.NO_SEAT;
+        Status checked = null;
+        try{
+            seat = getSeat(threadID);
+            MonitorEvent.seat(event, seat);
+            notWaiting(threadID, seat);
             
-            //Print that someone has left
-            System.out.println("Philosopher " + (threadID) + " has left the table.");
+            becomeHungry(seat);
+            check(seat);
+            checked = STATUSES[state[seat]];
+            bLeaves = checked == Status.eating;
+            if(bLeaves)
+                leaveSeat(threadID, seat);
+            else
+            {
+                await(seat, new Waiter(() -> {
+                    lock.lock();
+                    try{
+                        leaveSeat(threadID, getSeat(threadID));
+                    }
+                    finally
+                    {
+                        unlockAndWake();
+                    }
+                    poThen.run();
+                }));
+            }
         }
-        catch(InterruptedException e)
+        finally
         {
-            System.err.println("Monitor.leaveTable(): ");
-            DiningPhilosophers.reportException(e);
-            System.exit(1);
+            unlockAndWake(event);
+        }
+        tookOne(threadID, seat, checked);
+        MonitorEvent.end(event);
+        return bLeaves;
+    }
+    
+    /**
+     * Task 5:
+     * Takes the philosopher, holding both chopsticks, off their seat.
+     * Called while holding the lock.
+     */
+    private void leaveSeat(int threadID, int seat)
+    {
+        //Leave the table: only our neighbours' links change
+        int l = left[seat];
+        int r = right[seat];
+        left[seat] = 0;
+        right[seat] = 0;
+        parked[seat] = null;
+        state[seat] = (byte) Status.full.ordinal();
+        if(schedule != null)
+            schedule.record(threadID, ScheduleLog.LEFT);
+        nbPhil--;
+        if(nbPhil == 0)
+        {
+            first = 0;
+        }
+        else
+        {
+            right[l] = r;
+            left[r] = l;
+            if(first == seat)
+                first = r;
+            //They may be able to eat now that we are gone
+            check(l);
+            if(r != l)
+                check(r);
         }
         
-        lock.unlock();
+        //Print that someone has left
+        EventLog.log(EventLog.LEFT_TABLE, threadID, seat);
+    }
+
+    /*
+	 * ---------------------
+	 * Asynchronous requests
+	 * ---------------------
+     */
+    /**
+     * Same as pickUp(), without blocking: the future is completed with the
+     * grant by whoever hands over the chopsticks and the pepper, e.g. in
+     * putDown(), so its non-async stages run in their thread. Only a
+     * monitor with continuations() can, the future of the others fails.
+     *
+     * Time it out with orTimeout(), or cancel() it: if the philosopher is
+     * still waiting for their chopsticks, they stop being hungry, and let
+     * go of the one they may hold. If they got them meanwhile, they put
+     * everything down as soon as they have it all, and may not ask again
+     * before then. Nor may they while a request of theirs still waits: the
+     * second one fails with an IllegalStateException.
+     *
+     * Fails with a RejectedExecutionException when -Ddining.async.pending
+     * requests (MAX_ASYNC_REQUESTS) are already pending.
+     */
+    public CompletableFuture<Grant> pickUpAsync(final int piTID)
+    {
+        CompletableFuture<Grant> request = admit();
+        if(request.isDone())
+            return request;
+        Continuations later = continuations();
+        if(later == null)
+            return unsupported(request, "hand chopsticks to a continuation");
+        Grant grant = new Grant(this, piTID, Grant.Kind.meal);
+        try
+        {
+            if(later.pickUp(piTID, () -> grant.complete(request)))
+                grant.complete(request);
+            else
+                request.whenComplete((g, e) -> {
+                    if(e != null)
+                        withdraw(piTID);
+                });
+        }
+        catch(RuntimeException e)
+        {
+            request.completeExceptionally(e);
+        }
+        return request;
+    }
+
+    /**
+     * Same as requestTalk(), without blocking. Once timed out or
+     * cancelled, the philosopher keeps their place in line, and ends the
+     * talk as soon as it is theirs.
+     */
+    public CompletableFuture<Grant> requestTalkAsync(final int piTID)
+    {
+        CompletableFuture<Grant> request = admit();
+        if(request.isDone())
+            return request;
+        Grant grant = new Grant(this, piTID, Grant.Kind.talk);
+        if(requestTalk(piTID, () -> grant.complete(request)))
+            grant.complete(request);
+        return request;
+    }
+
+    /**
+     * Same as requestNap(), without blocking. Once timed out or cancelled,
+     * the philosopher still goes in with their batch, and leaves at once.
+     */
+    public CompletableFuture<Grant> requestNapAsync(final int piTID)
+    {
+        CompletableFuture<Grant> request = admit();
+        if(request.isDone())
+            return request;
+        Grant grant = new Grant(this, piTID, Grant.Kind.nap);
+        if(requestNap(piTID, () -> grant.complete(request)))
+            grant.complete(request);
+        return request;
+    }
+
+    /**
+     * Same as leaveTable(), without blocking. Timed out or cancelled while
+     * waiting for their neighbours to finish eating, the philosopher stays
+     * at the table; once they could leave, they have left.
+     */
+    public CompletableFuture<Grant> leaveTableAsync(final int threadID)
+    {
+        CompletableFuture<Grant> request = admit();
+        if(request.isDone())
+            return request;
+        Continuations later = continuations();
+        if(later == null)
+            return unsupported(request, "hand chopsticks to a continuation");
+        Grant grant = new Grant(this, threadID, Grant.Kind.leave);
+        try
+        {
+            if(later.leaveTable(threadID, () -> request.complete(grant)))
+                request.complete(grant);
+            else
+                request.whenComplete((g, e) -> {
+                    if(e != null)
+                        withdraw(threadID);
+                });
+        }
+        catch(RuntimeException e)
+        {
+            request.completeExceptionally(e);
+        }
+        return request;
+    }
+
+    /**
+     * Fails a request this engine can not serve
+     */
+    private CompletableFuture<Grant> unsupported(CompletableFuture<Grant> poRequest, String pstrWhat)
+    {
+        poRequest.completeExceptionally(new UnsupportedOperationException(
+                engine + " can not " + pstrWhat + ": use the global engine"));
+        return poRequest;
+    }
+
+    /**
+     * A new request, counted as pending until completed, or already failed
+     * if too many are
+     */
+    private CompletableFuture<Grant> admit()
+    {
+        CompletableFuture<Grant> request = new CompletableFuture<Grant>();
+        if(asyncRequests.incrementAndGet() > asyncLimit)
+        {
+            asyncRequests.decrementAndGet();
+            request.completeExceptionally(new RejectedExecutionException(
+                    asyncLimit + " requests are pending already"));
+            return request;
+        }
+        request.whenComplete((g, e) -> asyncRequests.decrementAndGet());
+        return request;
+    }
+
+    /**
+     * The philosopher no longer waits for their chopsticks, if they still
+     * are: they are full again, and their neighbours may eat. Else they got
+     * them, and whoever handed them over puts them back.
+     */
+    protected void withdraw(final int piTID)
+    {
+        Waiter withdrawn = null;
+        lock.lock();
+        try{
+            int seat = piTID - tidBase;
+            if(seat > 0 && seat < state.length && left[seat] != 0)
+            {
+                Waiter waiter = waiting[seat];
+                if(waiter != null && waiter.then != null)
+                {
+                    withdrawn = waiter;
+                    waiting[seat] = null;
+                    waiters--;
+                    setState(seat, Status.full);
+                    //They may have held a chopstick, or held them back as urgent
+                    check(left[seat]);
+                    check(right[seat]);
+                }
+            }
+        }
+        finally
+        {
+            unlockAndWake();
+        }
+        //They may have held a single chopstick a while
+        if(withdrawn != null)
+            tookOne(piTID, withdrawn.tookSeat, withdrawn.took);
     }
 }
 
@@ -0,0 +1,381 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class MonitorBenchmark
+ * Measures what the monitor's entry points cost: pickUp()/putDown(),
+ * requestTalk()/endTalk() and requestNap()/endNap(), for every combination
+ * of the parameters below. Reports throughput (ops/s) and the latency of the
+ * acquiring call (p50/p99/p99.9), which is where the arbitration happens.
+ *
+ * This is not JMH: the assignment builds with javac and make, without Maven
+ * or any library, and its classes are in the default package, which JMH's
+ * generated code can not import. The harness only does the part of JMH the
+ * comparisons here need, a fresh JVM per combination and a warmup before
+ * measuring, and has JMH's blind spots without its remedies:
+ *
+ *   - the warmup is a fixed time, not a number of iterations, and nothing
+ *     checks that the JIT is done compiling when measuring starts
+ *   - there is a single measurement per combination: no iterations, no
+ *     error bars, repeat the run to see the noise
+ *   - there are no blackholes, but the measured calls all have side effects
+ *     on the monitor, so the JIT can not eliminate them
+ *   - the clock (System.nanoTime()) is read twice per op, which adds its
+ *     own cost to the latencies, and to ops/s with zero eat time
+ *
+ * Use it to compare engines and settings against each other, on one
+ * machine, rather than for absolute numbers.
+ *
+ * Every parameter is a comma-separated list given as a system property:
+ *
+ *   -Dbench.ops=eat,talk,nap            what to measure
+ *   -Dbench.engines=global,striped,...  see DiningPhilosophers.createMonitor()
+ *   -Dbench.arbitration=priority,fair   see Monitor.Arbitration (global only)
+ *   -Dbench.acquisition=park            see Monitor.Acquisition (global only)
+ *   -Dbench.layouts=striped             see SeatLayout (striped and lockfree)
+ *   -Dbench.sizes=5,64,1024,16384       seats at the table
+ *   -Dbench.threads=1,2,4               threads driving the seats
+ *   -Dbench.eat=zero,uniform:10         time spent holding the grant
+ *   -Dbench.think=zero                  time spent between two grants
+ *   -Dbench.warmup=500                  milliseconds before measuring
+ *   -Dbench.time=2000                   milliseconds of measurement
+ *   -Dbench.fork=true                   a fresh JVM per combination
+ *
+ * Each combination runs in a JVM of its own, started with the same JVM
+ * options (-D, -XX...) as this one: in a shared JVM, the engines measured
+ * first would leave the JIT their profile, and make the call sites of
+ * Monitor megamorphic for the ones measured next. -Dbench.fork=false runs
+ * them all here, e.g. under a profiler.
+ *
+ * Times are busy-waited: "zero", "fixed:N", "uniform:N" (0 to N) or "exp:N"
+ * (exponential with mean N), N in microseconds. "zero" eat time isolates the
+ * cost of arbitration.
+ *
+ * cpu/op is the CPU time of the process while measuring, per op: what
+ * spinning costs, next to the latency it saves.
+ *
+ * Thread k drives the seats k, k + threads, k + 2 * threads... so that
+ * neighbouring seats are always driven by different threads.
+ *
+ * To see what false sharing costs, compare the layouts with zero eat and
+ * think times and a thread per core, e.g.
+ *
+ *   -Dbench.ops=eat -Dbench.engines=striped,lockfree -Dbench.eat=zero
+ *   -Dbench.layouts=packed,padded,striped -Dbench.threads=64
+ *
+ * under perf stat -e cache-misses (or perf c2c) for the coherence traffic.
+ *
+ * To see whether spinning before parking pays, compare the acquisitions
+ * with short meals and a thread per core, e.g.
+ *
+ *   -Dbench.ops=eat -Dbench.engines=global -Dbench.eat=zero,uniform:10
+ *   -Dbench.acquisition=park,spin,adaptive -Dbench.threads=2,4,64
+ *
+ * and cpu/op for what the spins cost.
+ *
+ * The partitioned engine takes -Ddining.partitions=N: compare 1 (a single
+ * lock, as global) with a few per core to see what partitioning buys.
+ */
+public class MonitorBenchmark {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    private static final PrintStream soOut = System.out;
+
+    private static volatile boolean sbRunning;
+    private static volatile boolean sbMeasuring;
+
+    /**
+     * What a benchmark thread measured
+     */
+    private static class Worker extends Thread
+    {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long ops = 0;
+    }
+
+    /**
+     * A duration distribution, in nanoseconds
+     */
+    private static final class Distribution
+    {
+        final String name;
+        final String kind;
+        final long nanos;
+
+        Distribution(String pstrSpec)
+        {
+            name = pstrSpec;
+            int colon = pstrSpec.indexOf(':');
+            kind = (colon < 0) ? pstrSpec : pstrSpec.substring(0, colon);
+            nanos = (colon < 0) ? 0 : Long.parseLong(pstrSpec.substring(colon + 1)) * 1000;
+            if(!kind.equals("zero") && !kind.equals("fixed")
+                    && !kind.equals("uniform") && !kind.equals("exp"))
+                throw new IllegalArgumentException("Unknown distribution \"" + pstrSpec + "\"");
+        }
+
+        long next()
+        {
+            switch(kind)
+            {
+                case "fixed":
+                    return nanos;
+                case "uniform":
+                    return (long) (ThreadLocalRandom.current().nextDouble() * nanos);
+                case "exp":
+                    return (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * nanos);
+                default:
+                    return 0;
+            }
+        }
+
+        void waste()
+        {
+            long nanos = next();
+            if(nanos == 0)
+                return;
+            long end = System.nanoTime() + nanos;
+            while(System.nanoTime() < end)
+            {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    public static void main(String[] argv) throws InterruptedException, IOException {
+        //The monitor logs a lot, none of it is part of the measurement
+        if(System.getProperty("dining.log") == null)
+            System.setProperty("dining.log", "off");
+
+        String[] astrOps = list("bench.ops", "eat,talk,nap");
+        String[] astrEngines = list("bench.engines", "global,striped,lockfree,partitioned");
+        String[] astrArbitration = list("bench.arbitration", "priority");
+        String[] astrAcquisition = list("bench.acquisition", "park");
+        String[] astrLayouts = list("bench.layouts", "striped");
+        String[] astrSizes = list("bench.sizes", "5,64,1024,16384");
+        String[] astrThreads = list("bench.threads", "1,2,4");
+        String[] astrEat = list("bench.eat", "zero,uniform:10");
+        String[] astrThink = list("bench.think", "zero");
+        long lWarmup = Long.getLong("bench.warmup", 500);
+        long lTime = Long.getLong("bench.time", 2000);
+        boolean bFork = Boolean.parseBoolean(System.getProperty("bench.fork", "true"));
+
+        //A forked run prints its row only
+        if(Boolean.parseBoolean(System.getProperty("bench.header", "true")))
+            soOut.printf("%-5s %-11s %-8s %-8s %-7s %6s %7s %-11s %-11s %12s %10s %10s %10s %11s%n",
+                    "op", "engine", "arbiter", "acquire", "layout", "seats", "threads", "eat", "think",
+                    "ops/s", "p50(us)", "p99(us)", "p999(us)", "cpu/op(us)");
+
+        for(String strOp : astrOps)
+            for(String strEngine : astrEngines)
+                for(String strArbitration : astrArbitration)
+                    for(String strAcquisition : astrAcquisition)
+                        for(String strLayout : astrLayouts)
+                            for(String strSize : astrSizes)
+                                for(String strThreads : astrThreads)
+                                    for(String strEat : strOp.equals("eat") ? astrEat : new String[] {"zero"})
+                                        for(String strThink : astrThink)
+                                        {
+                                            if(strArbitration.equals("fair") && !strEngine.equals("global"))
+                                                continue;
+                                            //Only the global engine has an acquisition, run the others once
+                                            if(!strEngine.equals("global") && !strAcquisition.equals(astrAcquisition[0]))
+                                                continue;
+                                            //The global and partitioned engines have no layout, run them once
+                                            if(!hasLayout(strEngine) && !strLayout.equals(astrLayouts[0]))
+                                                continue;
+                                            if(bFork)
+                                            {
+                                                fork("-Dbench.ops=" + strOp, "-Dbench.engines=" + strEngine,
+                                                        "-Dbench.arbitration=" + strArbitration,
+                                                        "-Dbench.acquisition=" + strAcquisition,
+                                                        "-Dbench.layouts=" + strLayout, "-Dbench.sizes=" + strSize,
+                                                        "-Dbench.threads=" + strThreads, "-Dbench.eat=" + strEat,
+                                                        "-Dbench.think=" + strThink);
+                                                continue;
+                                            }
+                                            System.setProperty("dining.arbitration", strArbitration);
+                                            System.setProperty("dining.acquisition", strAcquisition);
+                                            System.setProperty("dining.layout", strLayout);
+                                            int iSeats = Integer.parseInt(strSize);
+                                            int iThreads = Math.min(Integer.parseInt(strThreads), iSeats);
+                                            run(strOp, strEngine, iSeats, iThreads,
+                                                    new Distribution(strEat), new Distribution(strThink),
+                                                    lWarmup, lTime);
+                                        }
+    }
+
+    /**
+     * Runs one combination in a fresh JVM, with this JVM's options, and
+     * the given ones on top
+     */
+    private static void fork(String... pastrOptions) throws InterruptedException, IOException
+    {
+        List<String> astrCommand = new ArrayList<String>();
+        astrCommand.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        //Later options win over earlier ones
+        astrCommand.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        for(String strOption : pastrOptions)
+        {
+            astrCommand.add(strOption);
+        }
+        astrCommand.add("-Dbench.fork=false");
+        astrCommand.add("-Dbench.header=false");
+        astrCommand.add("-cp");
+        astrCommand.add(System.getProperty("java.class.path"));
+        astrCommand.add(MonitorBenchmark.class.getName());
+
+        Process oRun = new ProcessBuilder(astrCommand).inheritIO().start();
+        int iStatus = oRun.waitFor();
+        if(iStatus != 0)
+        {
+            System.err.println("MonitorBenchmark: " + String.join(" ", pastrOptions) + " exited with " + iStatus);
+            System.exit(iStatus);
+        }
+    }
+
+    private static boolean hasLayout(String pstrEngine)
+    {
+        return pstrEngine.equals("striped") || pstrEngine.equals("lockfree");
+    }
+
+    private static String[] list(String pstrProperty, String pstrDefault)
+    {
+        return System.getProperty(pstrProperty, pstrDefault).split(",");
+    }
+
+    private static void run(final String pstrOp, String pstrEngine, int piSeats, final int piThreads,
+            final Distribution poEat, final Distribution poThink, long plWarmup, long plTime)
+            throws InterruptedException
+    {
+        final Monitor monitor = DiningPhilosophers.createMonitor(pstrEngine, piSeats);
+        DiningPhilosophers.soMonitor = monitor;
+        final int seats = piSeats;
+
+        sbRunning = true;
+        sbMeasuring = false;
+        Worker[] aoWorkers = new Worker[piThreads];
+        for(int k = 0; k < piThreads; k++)
+        {
+            final int first = k;
+            aoWorkers[k] = new Worker()
+            {
+                public void run()
+                {
+                    while(sbRunning)
+                    {
+                        for(int seat = first; seat < seats && sbRunning; seat += piThreads)
+                        {
+                            cycle(monitor, pstrOp, seat + 1, this, poEat);
+                            poThink.waste();
+                        }
+                    }
+                }
+            };
+        }
+        for(Worker oWorker : aoWorkers)
+        {
+            oWorker.start();
+        }
+
+        Thread.sleep(plWarmup);
+        sbMeasuring = true;
+        long lStart = System.nanoTime();
+        long lCpuStart = cpuNanos();
+        Thread.sleep(plTime);
+        sbMeasuring = false;
+        long lElapsed = System.nanoTime() - lStart;
+        long lCpu = cpuNanos() - lCpuStart;
+        sbRunning = false;
+
+        LatencyHistogram oLatency = new LatencyHistogram();
+        long lOps = 0;
+        for(Worker oWorker : aoWorkers)
+        {
+            oWorker.join();
+            oLatency.add(oWorker.latency);
+            lOps += oWorker.ops;
+        }
+
+        soOut.printf("%-5s %-11s %-8s %-8s %-7s %6d %7d %-11s %-11s %12.0f %10.2f %10.2f %10.2f %11.2f%n",
+                pstrOp, pstrEngine, System.getProperty("dining.arbitration"),
+                pstrEngine.equals("global") ? monitor.acquisition().name() : "-",
+                !hasLayout(pstrEngine) ? "-" : System.getProperty("dining.layout"), piSeats, piThreads, poEat.name, poThink.name,
+                lOps * 1e9 / lElapsed,
+                oLatency.percentile(50) / 1000.0,
+                oLatency.percentile(99) / 1000.0,
+                oLatency.percentile(99.9) / 1000.0,
+                lOps == 0 ? 0.0 : lCpu / 1000.0 / lOps);
+    }
+
+    /**
+     * @return The CPU time of the whole process so far: the workers' eat and
+     * think times, their spins, and whatever the JVM does meanwhile
+     */
+    private static long cpuNanos()
+    {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    /**
+     * One round trip through the monitor, timing the acquiring call
+     */
+    private static void cycle(Monitor poMonitor, String pstrOp, int piTID, Worker poWorker,
+            Distribution poHold)
+    {
+        long lStart = System.nanoTime();
+        switch(pstrOp)
+        {
+            case "eat":
+                poMonitor.pickUp(piTID);
+                break;
+            case "talk":
+                poMonitor.requestTalk(piTID);
+                break;
+            case "nap":
+                poMonitor.requestNap(piTID);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown op \"" + pstrOp + "\"");
+        }
+        long lAcquired = System.nanoTime();
+
+        poHold.waste();
+
+        switch(pstrOp)
+        {
+            case "eat":
+                poMonitor.putDown(piTID);
+                break;
+            case "talk":
+                poMonitor.endTalk(piTID);
+                break;
+            default:
+                poMonitor.endNap(piTID);
+                break;
+        }
+
+        if(sbMeasuring)
+        {
+            poWorker.latency.record(lAcquired - lStart);
+            poWorker.ops++;
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,151 @@
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Class MonitorEvent
+ * A Java Flight Recorder event per call to the monitor: how long the call
+ * waited for the monitor's lock and held it, and what it found and did
+ * there. The event's own duration is the whole call, waits for chopsticks
+ * included. Talking and napping do not take the monitor's lock (see
+ * TalkNapCoordinator): their calls only have a duration.
+ *
+ * Only the global engine (Monitor itself, and the tables of a DiningHall
+ * of it) times its lock; the other engines record their talk and nap calls.
+ *
+ * Costs nothing unless recorded: with no recording of it on, start()
+ * creates no event, and the monitor does not read the clock for it.
+ * Record with, e.g.
+ *
+ *   java -XX:StartFlightRecording:filename=dining.jfr,settings=profile ...
+ *   jfr print --events dining.MonitorCall dining.jfr
+ *   jfr summary dining.jfr
+ *
+ * or open the recording in JDK Mission Control, under Dining Philosophers.
+ * Calls that got the lock at once and made no change are many and short:
+ * jdk.jfr's threshold setting (e.g. dining.MonitorCall#threshold=10us)
+ * keeps only the slow ones.
+ */
+@Name("dining.MonitorCall")
+@Label("Monitor Call")
+@Category("Dining Philosophers")
+@Description("A call to the monitor, with the time spent waiting for its lock and holding it")
+@StackTrace(false)
+public class MonitorEvent extends Event {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    @Label("Method")
+    String method;
+
+    @Label("Engine")
+    String engine;
+
+    @Label("TID")
+    int tid;
+
+    @Label("Seat")
+    @Description("The seat, -1 for a call not about one")
+    int seat = EventLog.NO_SEAT;
+
+    @Label("Lock Wait")
+    @Description("Time spent waiting to take the monitor's lock")
+    @Timespan
+    long lockWait;
+
+    @Label("Lock Hold")
+    @Description("Time spent holding the monitor's lock")
+    @Timespan
+    long lockHold;
+
+    @Label("Lock Queue")
+    @Description("Threads waiting for the monitor's lock when it was taken")
+    int lockQueue;
+
+    @Label("Hungry Waiters")
+    @Description("Philosophers waiting for their chopsticks when the lock was released")
+    int hungryWaiters;
+
+    @Label("Transitions")
+    @Description("Changes of status made while holding the lock, the neighbours' included")
+    int transitions;
+
+    //Not recorded: where the current lock hold started
+    private transient long heldSince;
+    private transient int transitionsSince;
+
+    private static final EventType TYPE = EventType.getEventType(MonitorEvent.class);
+
+    /**
+     * Constructor, for a call by the given philosopher
+     */
+    MonitorEvent(String pstrMethod, String pstrEngine, int piTID)
+    {
+        method = pstrMethod;
+        engine = pstrEngine;
+        tid = piTID;
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    /**
+     * @return A begun event for a call by the given philosopher, null if
+     * no recording is on for it, so that calls allocate nothing then. The
+     * other static methods take null for such an event.
+     */
+    static MonitorEvent start(String pstrMethod, String pstrEngine, int piTID)
+    {
+        if(!TYPE.isEnabled())
+            return null;
+        MonitorEvent event = new MonitorEvent(pstrMethod, pstrEngine, piTID);
+        event.begin();
+        return event;
+    }
+
+    static void seat(MonitorEvent poEvent, int piSeat)
+    {
+        if(poEvent != null)
+            poEvent.seat = piSeat;
+    }
+
+    static void end(MonitorEvent poEvent)
+    {
+        if(poEvent != null)
+            poEvent.commit();
+    }
+
+    /**
+     * The lock was taken, after waiting since plSince
+     */
+    void locked(long plSince, int piQueue, int piTransitions)
+    {
+        heldSince = System.nanoTime();
+        lockWait += heldSince - plSince;
+        lockQueue = Math.max(lockQueue, piQueue);
+        transitionsSince = piTransitions;
+    }
+
+    /**
+     * The lock is about to be released
+     */
+    void unlocking(int piHungryWaiters, int piTransitions)
+    {
+        lockHold += System.nanoTime() - heldSince;
+        hungryWaiters = piHungryWaiters;
+        transitions += piTransitions - transitionsSince;
+    }
+}
+
+// EOF
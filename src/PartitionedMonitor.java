@@ -0,0 +1,512 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class PartitionedMonitor
+ * Same arbitration rules and the same ring as Monitor, cut into partitions:
+ * contiguous arcs of seats, each with its own lock. A seat only contends
+ * with its two neighbours, so a pickUp()/putDown() inside an arc takes that
+ * arc's lock only. Only at the ends of an arc does the chopstick shared
+ * with the next arc take both arcs' locks, in increasing order, so there
+ * is no deadlock. With P partitions, all but about 1 call in (n / P) is
+ * local, and throughput grows with P until the table is mostly boundaries.
+ *
+ * A friend joins their host's arc, to the right of the host as in Monitor,
+ * and a philosopher who leaves takes their seat out of their arc: joins and
+ * leaves are as local as meals. Arcs are never rebalanced.
+ *
+ * Seats are indexed by TID. The arrays are replaced (when a TID outgrows
+ * them) while holding every lock, and published as one volatile Seats, so
+ * a diner may read them without a lock to find out which locks to take,
+ * then checks the partitions did not change once they hold them. The links
+ * and status of a seat are only written while holding its partition's
+ * lock.
+ *
+ * The JVM does not bind threads to CPUs: to keep an arc on a set of cores
+ * (or a NUMA node), run the philosophers of each partition (see
+ * partitionOf()) on threads pinned from outside, e.g. with taskset or
+ * numactl.
+ *
+ * -Ddining.partitions sets how many (0, the default, for 4 per core), at
+ * most one per seat.
+ */
+public class PartitionedMonitor extends Monitor {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    private final ReentrantLock[] partitions;
+
+    private volatile Seats seats;
+
+    //The seat after which a friend of nobody sits is left of first, 0 when
+    //the table is empty. Only written holding the lock of its partition.
+    private volatile int first = 0;
+
+    private final AtomicInteger seated = new AtomicInteger();
+
+    /**
+     * Everything about the seats, indexed by TID. left and right are the
+     * TIDs of the neighbours, 0 for an empty seat.
+     */
+    private static final class Seats
+    {
+        final byte[] state;
+        final int[] priority;
+        final int[] left;
+        final int[] right;
+        final int[] partition;
+        final Waiter[] waiting;
+
+        Seats(int piCapacity)
+        {
+            state = new byte[piCapacity];
+            priority = new int[piCapacity];
+            left = new int[piCapacity];
+            right = new int[piCapacity];
+            partition = new int[piCapacity];
+            waiting = new Waiter[piCapacity];
+        }
+
+        Seats(Seats poFrom, int piCapacity)
+        {
+            state = Arrays.copyOf(poFrom.state, piCapacity);
+            priority = Arrays.copyOf(poFrom.priority, piCapacity);
+            left = Arrays.copyOf(poFrom.left, piCapacity);
+            right = Arrays.copyOf(poFrom.right, piCapacity);
+            partition = Arrays.copyOf(poFrom.partition, piCapacity);
+            waiting = Arrays.copyOf(poFrom.waiting, piCapacity);
+        }
+
+        boolean seated(int tid)
+        {
+            return tid > 0 && tid < left.length && left[tid] != 0;
+        }
+
+        boolean is(int tid, Status status)
+        {
+            return state[tid] == status.ordinal();
+        }
+    }
+
+    //A hungry philosopher, handed their chopsticks by whoever makes them
+    //eat, then unparked once that one released their locks
+    private static final class Waiter
+    {
+        final Thread thread = Thread.currentThread();
+        volatile boolean granted = false;
+        Waiter next;
+    }
+
+    private static final Status[] STATUSES = Status.values();
+
+    /**
+     * Constructor
+     */
+    public PartitionedMonitor(int piNumberOfPhilosophers)
+    {
+        this(firstTIDs(piNumberOfPhilosophers));
+    }
+
+    /**
+     * Constructor, for a table whose philosophers have the given TIDs, in
+     * increasing order, cut into -Ddining.partitions arcs
+     */
+    public PartitionedMonitor(int[] paiTIDs)
+    {
+        this(paiTIDs, Integer.getInteger("dining.partitions", 0));
+    }
+
+    /**
+     * Constructor, cut into so many arcs, 0 for 4 per core
+     */
+    public PartitionedMonitor(int[] paiTIDs, int piPartitions)
+    {
+        int n = paiTIDs.length;
+        if(piPartitions <= 0)
+            piPartitions = 4 * Runtime.getRuntime().availableProcessors();
+        partitions = new ReentrantLock[Math.max(1, Math.min(piPartitions, n))];
+        for(int i = 0; i < partitions.length; i++)
+        {
+            partitions[i] = new ReentrantLock();
+        }
+
+        int[] priority = shufflePriorities(n);
+        logPriorities(paiTIDs, priority);
+        Seats s = new Seats((n > 0) ? paiTIDs[n - 1] + 1 : 1);
+        for(int i = 0; i < n; i++)
+        {
+            int tid = paiTIDs[i];
+            s.state[tid] = (byte) Status.full.ordinal();
+            s.priority[tid] = priority[i];
+            s.left[tid] = paiTIDs[(i + n - 1) % n];
+            s.right[tid] = paiTIDs[(i + 1) % n];
+            //Arcs of consecutive seats, as even as can be
+            s.partition[tid] = (int) ((long) i * partitions.length / n);
+        }
+        seats = s;
+        first = (n > 0) ? paiTIDs[0] : 0;
+        seated.set(n);
+        nbPhil = n;
+    }
+
+    /*
+	 * -------------------------------
+	 * User-defined monitor procedures
+	 * -------------------------------
+     */
+    /**
+     * @return The partition the philosopher sits in, -1 if they do not
+     */
+    public int partitionOf(int piTID)
+    {
+        Seats s = seats;
+        return s.seated(piTID) ? s.partition[piTID] : -1;
+    }
+
+    /**
+     * @return How many partitions the table is cut into
+     */
+    public int partitions()
+    {
+        return partitions.length;
+    }
+
+    /**
+     * The partitions of the seats within piRadius of the given one, sorted,
+     * without a lock. Null if the seat is not at the table.
+     */
+    private static int[] partitionsAround(Seats s, int tid, int piRadius)
+    {
+        if(!s.seated(tid))
+            return null;
+        int[] around = new int[2 * piRadius + 1];
+        around[0] = s.partition[tid];
+        int n = 1;
+        int l = tid;
+        int r = tid;
+        for(int i = 0; i < piRadius; i++)
+        {
+            l = s.left[l];
+            r = s.right[r];
+            //Racing a change: whoever holds the locks tells
+            if(!s.seated(l) || !s.seated(r))
+                return new int[0];
+            around[n++] = s.partition[l];
+            around[n++] = s.partition[r];
+        }
+        Arrays.sort(around);
+        int distinct = 0;
+        for(int i = 0; i < n; i++)
+        {
+            if(distinct == 0 || around[distinct - 1] != around[i])
+                around[distinct++] = around[i];
+        }
+        return Arrays.copyOf(around, distinct);
+    }
+
+    /**
+     * Locks the partitions of the seats within piRadius of the given one,
+     * in increasing order. Holding them, nobody can change those seats.
+     * @return What to unlock(), or null if the seat is not at the table
+     */
+    private int[] lockAround(int tid, int piRadius)
+    {
+        for(;;)
+        {
+            int[] held = partitionsAround(seats, tid, piRadius);
+            if(held == null)
+                return null;
+            if(held.length == 0)
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+            for(int partition : held)
+            {
+                partitions[partition].lock();
+            }
+            int[] now = partitionsAround(seats, tid, piRadius);
+            if(Arrays.equals(held, now))
+                return held;
+            //A neighbour joined or left meanwhile, or a lock was missing
+            unlock(held);
+        }
+    }
+
+    private void unlock(int[] held)
+    {
+        for(int i = held.length - 1; i >= 0; i--)
+        {
+            partitions[held[i]].unlock();
+        }
+    }
+
+    private void lockAll()
+    {
+        for(ReentrantLock partition : partitions)
+        {
+            partition.lock();
+        }
+    }
+
+    private void unlockAll()
+    {
+        for(int i = partitions.length - 1; i >= 0; i--)
+        {
+            partitions[i].unlock();
+        }
+    }
+
+    /**
+     * Same as Monitor.check(), holding the locks within 1 of the seat
+     * @return The waiters granted so far, this one's included if granted
+     */
+    private static Waiter check(Seats s, int tid, Waiter pending)
+    {
+        int l = s.left[tid];
+        int r = s.right[tid];
+        Status current = STATUSES[s.state[tid]];
+        Status next = arbitrate(current, STATUSES[s.state[l]], STATUSES[s.state[r]],
+                s.priority[tid], s.priority[l], s.priority[r]);
+        if(next == current)
+            return pending;
+        if(next == Status.hasRightChopstick)
+        {
+            EventLog.log(EventLog.TOOK_RIGHT_CHOPSTICK, tid, tid);
+            DiningMetrics.oneChopstick(tid);
+        }
+        else if(next == Status.hasLeftChopstick)
+        {
+            EventLog.log(EventLog.TOOK_LEFT_CHOPSTICK, tid, tid);
+            DiningMetrics.oneChopstick(tid);
+        }
+        s.state[tid] = (byte) next.ordinal();
+        if(next != Status.eating)
+            return pending;
+        Waiter waiter = s.waiting[tid];
+        if(waiter == null)
+            return pending;
+        s.waiting[tid] = null;
+        waiter.granted = true;
+        waiter.next = pending;
+        return waiter;
+    }
+
+    /**
+     * Releases the locks, then unparks everyone granted while they were
+     * held
+     */
+    private void unlockAndWake(int[] held, Waiter pending)
+    {
+        unlock(held);
+        while(pending != null)
+        {
+            //Read before unparking: the waiter is free to go from then on
+            Waiter next = pending.next;
+            LockSupport.unpark(pending.thread);
+            pending = next;
+        }
+    }
+
+    /**
+     * Makes the philosopher hungry and waits until they are eating. Used
+     * by pickUp() and leaveTable().
+     * @return When the philosopher started waiting, 0 if they did not
+     */
+    private long acquireChopsticks(final int piTID)
+    {
+        int[] held = lockAround(piTID, 1);
+        if(held == null)
+            throw new IllegalArgumentException("Philosopher " + piTID + " is not at the table");
+        Seats s = seats;
+        s.state[piTID] = (byte) Status.hungry.ordinal();
+        check(s, piTID, null);
+        if(s.is(piTID, Status.eating))
+        {
+            unlock(held);
+            return 0;
+        }
+
+        if(s.is(piTID, Status.hungry))
+            EventLog.log(EventLog.WAITING_TO_EAT, piTID, piTID);
+        long lSince = DiningMetrics.now();
+        Waiter waiter = new Waiter();
+        s.waiting[piTID] = waiter;
+        unlock(held);
+        while(!waiter.granted)
+        {
+            LockSupport.park(this);
+        }
+        return lSince;
+    }
+
+    /**
+     * Grants request (returns) to eat when both chopsticks/forks are available.
+     * Else parks the philosopher until a neighbour hands them over.
+     */
+    @Override
+    public void pickUp(final int piTID)
+    {
+        long lHungrySince = acquireChopsticks(piTID);
+        if(lHungrySince != 0)
+            DiningMetrics.hungry(piTID, lHungrySince);
+
+        takeCondiments(piTID);
+    }
+
+    /**
+     * When a given philosopher's done eating, they put the chopstiks/forks down
+     * and let their neighbours know they are available.
+     */
+    @Override
+    public void putDown(final int piTID)
+    {
+        putDownCondiments(piTID);
+        DiningMetrics.meal(piTID);
+
+        //check() of a neighbour reads the neighbour's neighbours
+        int[] held = lockAround(piTID, 2);
+        if(held == null)
+            throw new IllegalArgumentException("Philosopher " + piTID + " is not at the table");
+        Seats s = seats;
+        s.state[piTID] = (byte) Status.full.ordinal();
+        Waiter pending = check(s, s.left[piTID], null);
+        pending = check(s, s.right[piTID], pending);
+        unlockAndWake(held, pending);
+    }
+
+    /**
+     * Allow a philosopher to join the table, to the right of their host if
+     * the host sits here, else at the last seat, in the same partition
+     */
+    @Override
+    public void joinTable(int threadId, int piHostTID)
+    {
+        if(threadId >= seats.left.length)
+            grow(threadId + 1);
+
+        for(;;)
+        {
+            Seats s = seats;
+            int f = first;
+            int after = s.seated(piHostTID) ? piHostTID : (f != 0 ? s.left[f] : 0);
+            //An empty table, or one that just became empty: hold everything
+            int[] held = (after == 0) ? null : lockAround(after, 2);
+            if(held == null)
+            {
+                lockAll();
+                if(first == 0)
+                {
+                    sitAlone(threadId);
+                    unlockAll();
+                    return;
+                }
+                unlockAll();
+                continue;
+            }
+            //Our host (or the last seat) may have left meanwhile, the seats
+            //may have grown
+            s = seats;
+            boolean bStill = s.seated(piHostTID)
+                    ? after == piHostTID
+                    : (first == f && s.seated(f) && s.left[f] == after);
+            if(!bStill)
+            {
+                unlock(held);
+                continue;
+            }
+
+            int next = s.right[after];
+            s.state[threadId] = (byte) Status.full.ordinal();
+            s.priority[threadId] = threadId;
+            s.partition[threadId] = s.partition[after];
+            s.left[threadId] = after;
+            s.right[threadId] = next;
+            s.right[after] = threadId;
+            s.left[next] = threadId;
+            nbPhil = seated.incrementAndGet();
+            EventLog.log(EventLog.JOINED_TABLE, threadId, threadId, threadId);
+
+            //Our neighbours no longer sit next to each other: one of them
+            //may have waited for the other
+            Waiter pending = check(s, after, null);
+            pending = check(s, next, pending);
+            unlockAndWake(held, pending);
+            return;
+        }
+    }
+
+    /**
+     * The first to sit at an empty table, in the first partition. Called
+     * while holding every lock.
+     */
+    private void sitAlone(int threadId)
+    {
+        Seats s = seats;
+        s.state[threadId] = (byte) Status.full.ordinal();
+        s.priority[threadId] = threadId;
+        s.partition[threadId] = 0;
+        s.left[threadId] = threadId;
+        s.right[threadId] = threadId;
+        first = threadId;
+        nbPhil = seated.incrementAndGet();
+        EventLog.log(EventLog.JOINED_TABLE, threadId, threadId, threadId);
+    }
+
+    /**
+     * Makes room for the TIDs below piCapacity, holding every lock
+     */
+    private void grow(int piCapacity)
+    {
+        lockAll();
+        Seats s = seats;
+        if(piCapacity > s.left.length)
+            seats = new Seats(s, Math.max(piCapacity, s.left.length * 2));
+        unlockAll();
+    }
+
+    /**
+     * Allow a philosopher to leave the table, once their neighbours are not
+     * eating. Only their neighbours' links change.
+     * @param threadID The thread ID of the philosopher that wants to leave
+     */
+    @Override
+    public void leaveTable(int threadID)
+    {
+        acquireChopsticks(threadID);
+
+        int[] held = lockAround(threadID, 2);
+        Seats s = seats;
+        int l = s.left[threadID];
+        int r = s.right[threadID];
+        s.left[threadID] = 0;
+        s.right[threadID] = 0;
+        s.state[threadID] = (byte) Status.full.ordinal();
+        nbPhil = seated.decrementAndGet();
+        Waiter pending = null;
+        if(l == threadID)
+        {
+            first = 0;
+        }
+        else
+        {
+            s.right[l] = r;
+            s.left[r] = l;
+            if(first == threadID)
+                first = r;
+            //They may be able to eat now that we are gone
+            pending = check(s, l, null);
+            if(r != l)
+                pending = check(s, r, pending);
+        }
+        EventLog.log(EventLog.LEFT_TABLE, threadID, threadID);
+        unlockAndWake(held, pending);
+    }
+}
+
+// EOF
@@ -9,7 +9,9 @@ import common.BaseThread;
 public class Philosopher extends BaseThread {
 
     /**
-     * Max time an action can take (in milliseconds)
+     * Max time an action can take (in milliseconds). This and the odds are
+     * the defaults of DiningConfig, the values used are in
+     * DiningPhilosophers.soConfig.
      */
     public static final long TIME_TO_WASTE = 1000;
     public static final double ODDS_OF_INVITING_FRIEND = 0.05;
@@ -19,6 +21,10 @@ public class Philosopher extends BaseThread {
     
     //Task 5: Allow philosophers to invite a friend
     Philosopher friend;
+    
+    //The thread carrying the friend's run(): the friend itself, or a
+    //virtual thread
+    Thread friendThread;
 
     /**
      * The act of eating. - Print the fact that a given phil (their TID) has
@@ -28,11 +34,11 @@ public class Philosopher extends BaseThread {
     public void eat() {
         //Task 1: Implementation of eat()
         try {
-            System.out.println("Philosopher " + getTID() + " has started eating.");
-            yield();
-            sleep((long) (Math.random() * TIME_TO_WASTE));
-            yield();
-            System.out.println("Philosopher " + getTID() + " is done eating.");
+            EventLog.log(EventLog.STARTED_EATING, getTID());
+            Thread.yield();
+            sleep((long) (random().nextDouble() * DiningPhilosophers.soConfig.actionMillis));
+            Thread.yield();
+            EventLog.log(EventLog.DONE_EATING, getTID());
         } catch (InterruptedException e) {
             System.err.println("Philosopher.eat():");
             DiningPhilosophers.reportException(e);
@@ -48,11 +54,11 @@ public class Philosopher extends BaseThread {
     public void think() {
         //Task 1: Implementation of think()
         try {
-            System.out.println("Philosopher " + getTID() + " has started thinking.");
-            yield();
-            sleep((long) (Math.random() * TIME_TO_WASTE));
-            yield();
-            System.out.println("Philosopher " + getTID() + " is done thinking.");
+            EventLog.log(EventLog.STARTED_THINKING, getTID());
+            Thread.yield();
+            sleep((long) (random().nextDouble() * DiningPhilosophers.soConfig.actionMillis));
+            Thread.yield();
+            EventLog.log(EventLog.DONE_THINKING, getTID());
         } catch (InterruptedException e) {
             System.err.println("Philosopher.think():");
             DiningPhilosophers.reportException(e);
@@ -63,11 +69,11 @@ public class Philosopher extends BaseThread {
     public void nap() {
         //Task 1: Implementation of nap()
         try {
-            System.out.println("Philosopher " + getTID() + " has started napping.");
-            yield();
-            sleep((long) (Math.random() * TIME_TO_WASTE));
-            yield();
-            System.out.println("Philosopher " + getTID() + " is done napping.");
+            EventLog.log(EventLog.STARTED_NAPPING, getTID());
+            Thread.yield();
+            sleep((long) (random().nextDouble() * DiningPhilosophers.soConfig.actionMillis));
+            Thread.yield();
+            EventLog.log(EventLog.DONE_NAPPING, getTID());
         } catch (InterruptedException e) {
             System.err.println("Philosopher.nap():");
             DiningPhilosophers.reportException(e);
@@ -82,11 +88,11 @@ public class Philosopher extends BaseThread {
      */
     public void talk() {
         //Task 1: Implementation of talk()
-        System.out.println("Philosopher " + getTID() + " has started talking.");
-        yield();
+        EventLog.log(EventLog.STARTED_TALKING, getTID());
+        Thread.yield();
         saySomething();
-        yield();
-        System.out.println("Philosopher " + getTID() + " is done talking");
+        Thread.yield();
+        EventLog.log(EventLog.DONE_TALKING, getTID());
     }
 
     /**
@@ -94,7 +100,7 @@ public class Philosopher extends BaseThread {
      */
     public void run() {
         //Task 1: Implementation of run()
-        for (int i = 0; i < DiningPhilosophers.DINING_STEPS; i++) {
+        for (int i = 0; i < DiningPhilosophers.soConfig.steps; i++) {
             DiningPhilosophers.soMonitor.pickUp(getTID());
 
             eat();
@@ -102,17 +108,20 @@ public class Philosopher extends BaseThread {
             DiningPhilosophers.soMonitor.putDown(getTID());
             
             //Task 5: Decide at random if the philosopher will invite a friend to join the table
-            if(Math.random() < ODDS_OF_INVITING_FRIEND && friend == null)
+            if(random().nextDouble() < DiningPhilosophers.soConfig.oddsOfInvitingFriend && friend == null)
             {
                 friend = new Philosopher();
-                DiningPhilosophers.soMonitor.joinTable(friend.getTID());
-                friend.start();
+                DiningPhilosophers.soMonitor.joinTable(friend.getTID(), getTID());
+                friendThread = DiningPhilosophers.launch(friend);
             }
             
             //Task 5: Decide at random if the philosopher will leave the table
-            if(Math.random() < ODDS_OF_LEAVING_TABLE)
+            if(random().nextDouble() < DiningPhilosophers.soConfig.oddsOfLeavingTable)
             {
                 DiningPhilosophers.soMonitor.leaveTable(getTID());
+                //Our seat is free, so is our TID, for the next friend
+                DiningMetrics.retire(getTID());
+                retireTID();
                 break;
             }
 
@@ -120,20 +129,20 @@ public class Philosopher extends BaseThread {
 
             //Decide at random if the philosopher has something to say
             //after all that thinking
-            if (Math.random() < ODDS_OF_TALKING) {
+            if (random().nextDouble() < DiningPhilosophers.soConfig.oddsOfTalking) {
                 //Use the monitor to request permission to talk
-                DiningPhilosophers.soMonitor.requestTalk();
+                DiningPhilosophers.soMonitor.requestTalk(getTID());
                 talk();
                 //Use the monitor to signal that talking is over for now
-                DiningPhilosophers.soMonitor.endTalk();
+                DiningPhilosophers.soMonitor.endTalk(getTID());
             }
             
             //All that talking and thinking is exhausting. Let's take a nap.
-            DiningPhilosophers.soMonitor.requestNap();
+            DiningPhilosophers.soMonitor.requestNap(getTID());
             nap();
-            DiningPhilosophers.soMonitor.endNap();
+            DiningPhilosophers.soMonitor.endNap(getTID());
 
-            yield();
+            Thread.yield();
         }
         
         if(friend != null)
@@ -143,7 +152,7 @@ public class Philosopher extends BaseThread {
             //are done
             try
             {
-                friend.join();
+                friendThread.join();
             }
             catch(InterruptedException e)
             {
@@ -154,26 +163,37 @@ public class Philosopher extends BaseThread {
         }
     } // run()
 
+    /**
+     * Things a philosopher may say. The last one is followed by their TID.
+     */
+    private static final String[] astrPhrases
+            = {
+                "Eh, it's not easy to be a philosopher: eat, think, talk, eat...",
+                "You know, true is false and false is true if you think of it",
+                "2 + 2 = 5 for extremely large values of 2...",
+                "If thee cannot speak, thee must be silent",
+                "Every moment you spend above the ground is spending too much energy",
+                "I legs t have not been this for drink suifnence Frosh ma",
+                "My number is "
+            };
+
     /**
      * Prints out a phrase from the array of phrases at random. Feel free to add
      * your own phrases.
      */
     public void saySomething() {
-        String[] astrPhrases
-                = {
-                    "Eh, it's not easy to be a philosopher: eat, think, talk, eat...",
-                    "You know, true is false and false is true if you think of it",
-                    "2 + 2 = 5 for extremely large values of 2...",
-                    "If thee cannot speak, thee must be silent",
-                    "Every moment you spend above the ground is spending too much energy",
-                    "I legs t have not been this for drink suifnence Frosh ma",
-                    "My number is " + getTID() + ""
-                };
-
-        System.out.println(
-                "Philosopher " + getTID() + " says: "
-                + astrPhrases[(int) (Math.random() * astrPhrases.length)]
-        );
+        EventLog.log(EventLog.SAYS, getTID(), EventLog.NO_SEAT,
+                random().nextInt(astrPhrases.length));
+    }
+
+    /**
+     * The text of a phrase, as said by the given philosopher
+     */
+    static String phrase(int piPhrase, int piTID) {
+        if (piPhrase == astrPhrases.length - 1) {
+            return astrPhrases[piPhrase] + piTID;
+        }
+        return astrPhrases[piPhrase];
     }
 }
 
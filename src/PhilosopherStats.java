@@ -0,0 +1,141 @@
+
+import java.io.PrintStream;
+
+/**
+ * Class PhilosopherStats
+ * What happened to one philosopher over a run: how much they ate, and how
+ * long they waited for what. All the times are in nanoseconds.
+ *
+ * The counters (see PhilosopherStatsCounters) are written by their
+ * philosopher's thread, and a philosopher's stats are often next to their
+ * neighbour's in the heap. So they sit between two cache lines of padding,
+ * each in a class of its own: the JVM may reorder the fields of a class,
+ * but lays out a superclass's before its subclass's.
+ */
+public class PhilosopherStats extends PhilosopherStatsPaddingAfter {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    public final int tid;
+
+    /**
+     * How many philosophers had the TID before, who left (see
+     * DiningMetrics.retire())
+     */
+    public final int generation;
+
+    /**
+     * The table of a DiningHall they sat at, -1 if not at one
+     */
+    public int table = -1;
+
+    public PhilosopherStats(int piTID)
+    {
+        this(piTID, 0);
+    }
+
+    public PhilosopherStats(int piTID, int piGeneration)
+    {
+        tid = piTID;
+        generation = piGeneration;
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    /**
+     * Prints one line per philosopher, then the totals. A TID handed out
+     * again is followed by its generation, e.g. 7#1 for the second
+     * philosopher who had TID 7.
+     */
+    public static void print(PrintStream poOut, PhilosopherStats[] paoStats)
+    {
+        //Totals in milliseconds: a large table overflows a long of nanoseconds
+        long lMeals = 0;
+        long lOneChopstickHolds = 0;
+        double dHungry = 0;
+        double dPepper = 0;
+        double dTalkWait = 0;
+        double dNapWait = 0;
+        poOut.printf("%8s %8s %12s %12s %12s %12s %8s%n",
+                "TID", "meals", "hungry(ms)", "pepper(ms)", "talkwait(ms)", "napwait(ms)", "1-stick");
+        for(PhilosopherStats oStats : paoStats)
+        {
+            String strWho = (oStats.generation == 0)
+                    ? Integer.toString(oStats.tid) : oStats.tid + "#" + oStats.generation;
+            print(poOut, strWho, oStats.meals,
+                    oStats.hungryNanos / 1e6, oStats.pepperNanos / 1e6,
+                    oStats.talkWaitNanos / 1e6, oStats.napWaitNanos / 1e6,
+                    oStats.oneChopstickHolds);
+            lMeals += oStats.meals;
+            lOneChopstickHolds += oStats.oneChopstickHolds;
+            dHungry += oStats.hungryNanos / 1e6;
+            dPepper += oStats.pepperNanos / 1e6;
+            dTalkWait += oStats.talkWaitNanos / 1e6;
+            dNapWait += oStats.napWaitNanos / 1e6;
+        }
+        print(poOut, "total", lMeals, dHungry, dPepper, dTalkWait, dNapWait, lOneChopstickHolds);
+    }
+
+    private static void print(PrintStream poOut, String pstrWho, long plMeals,
+            double pdHungry, double pdPepper, double pdTalkWait, double pdNapWait,
+            long plOneChopstickHolds)
+    {
+        poOut.printf("%8s %8d %12.1f %12.1f %12.1f %12.1f %8d%n",
+                pstrWho, plMeals, pdHungry, pdPepper, pdTalkWait, pdNapWait, plOneChopstickHolds);
+    }
+}
+
+/**
+ * A cache line between the counters and whatever is before them: the
+ * object header, or the end of the object before
+ */
+abstract class PhilosopherStatsPaddingBefore {
+
+    @SuppressWarnings("unused")
+    private long p0, p1, p2, p3, p4, p5, p6, p7;
+}
+
+/**
+ * What PhilosopherStats counts
+ */
+abstract class PhilosopherStatsCounters extends PhilosopherStatsPaddingBefore {
+
+    public long meals = 0;
+
+    /**
+     * Waiting for both chopsticks in pickUp()
+     */
+    public long hungryNanos = 0;
+
+    /**
+     * Holding the chopsticks, waiting for a pepper shaker
+     */
+    public long pepperNanos = 0;
+
+    public long talkWaitNanos = 0;
+    public long napWaitNanos = 0;
+
+    /**
+     * Times they were granted a single chopstick (hasLeftChopstick or
+     * hasRightChopstick) on account of their priority
+     */
+    public long oneChopstickHolds = 0;
+}
+
+/**
+ * A cache line between the counters and whatever is after them: the rest
+ * of PhilosopherStats, and the next object
+ */
+abstract class PhilosopherStatsPaddingAfter extends PhilosopherStatsCounters {
+
+    @SuppressWarnings("unused")
+    private long q0, q1, q2, q3, q4, q5, q6, q7;
+}
+
+// EOF
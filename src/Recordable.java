@@ -0,0 +1,17 @@
+
+/**
+ * Interface Recordable
+ * A monitor that lets philosophers eat in one order it can record, and
+ * replay (see ScheduleLog). Only the global engine at a single table has
+ * such an order: see Monitor.recordable().
+ */
+public interface Recordable {
+
+    /**
+     * Records the schedule to, or replays it from, the given log. Must be
+     * called before any philosopher sits down to eat.
+     */
+    void schedule(ScheduleLog poSchedule);
+}
+
+// EOF
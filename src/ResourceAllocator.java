@@ -0,0 +1,353 @@
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class ResourceAllocator
+ * Shared things on the table that come in a few copies: pepper shakers,
+ * salt, plates... A diner asks for a bundle (so many of each type) and gets
+ * all of it or none of it, so nobody ever holds some while waiting for the
+ * rest, and there is no order to get wrong.
+ *
+ * What is left of each type sits in a bit field of a long, topped by a guard
+ * bit: subtracting a bundle from the word with every guard set leaves the
+ * guards of the types that fall short cleared, so a word of any number of
+ * types is checked and taken with one subtraction and one CAS. Words are
+ * taken in increasing order, and put back if a later one falls short.
+ *
+ * Diners who must wait queue up in FIFO order, and whoever gives resources
+ * back hands them to as many diners at the head of the queue as they can
+ * serve, in one pass. The diners served are woken, or their continuations
+ * run, once the queue is released.
+ *
+ * Configured from -Ddining.resources=NAME:COUNT,... (default pepper:2), one
+ * of each per meal.
+ */
+public final class ResourceAllocator {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    private final String[] names;
+    private final int[] counts;
+
+    //Where each type's bit field is
+    private final int[] word;
+    private final int[] shift;
+    //The guard bits of each word
+    private final long[] guards;
+    private final AtomicLongArray available;
+
+    /**
+     * What a meal takes: one of each type, as a delta for each word
+     */
+    private final long[] meal;
+
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+    private volatile int waiting = 0;
+    //Served while holding queueLock, to be woken once it is released
+    private Waiter pending = null;
+
+    //A parked thread, or a continuation to run once granted
+    private static final class Waiter
+    {
+        final Thread thread;
+        final Runnable then;
+        final long[] bundle;
+        volatile boolean granted = false;
+        Waiter next;
+
+        Waiter(long[] bundle, Runnable then)
+        {
+            this.thread = (then == null) ? Thread.currentThread() : null;
+            this.then = then;
+            this.bundle = bundle;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param pastrNames The name of each type of resource
+     * @param paiCounts How many there are of each
+     */
+    public ResourceAllocator(String[] pastrNames, int[] paiCounts)
+    {
+        if(pastrNames.length != paiCounts.length || pastrNames.length == 0)
+            throw new IllegalArgumentException("Each resource needs one count");
+        names = pastrNames.clone();
+        counts = paiCounts.clone();
+        word = new int[counts.length];
+        shift = new int[counts.length];
+        long[] alGuards = new long[counts.length];
+
+        int iWord = 0;
+        int iBit = 0;
+        for(int i = 0; i < counts.length; i++)
+        {
+            if(counts[i] < 1)
+                throw new IllegalArgumentException("There must be at least one " + names[i]);
+            int iBits = 32 - Integer.numberOfLeadingZeros(counts[i]);
+            if(iBit + iBits + 1 > 64)
+            {
+                iWord++;
+                iBit = 0;
+            }
+            word[i] = iWord;
+            shift[i] = iBit;
+            alGuards[iWord] |= 1L << (iBit + iBits);
+            iBit += iBits + 1;
+        }
+
+        guards = Arrays.copyOf(alGuards, iWord + 1);
+        available = new AtomicLongArray(iWord + 1);
+        for(int i = 0; i < counts.length; i++)
+        {
+            available.addAndGet(word[i], (long) counts[i] << shift[i]);
+        }
+        int[] aiOne = new int[counts.length];
+        Arrays.fill(aiOne, 1);
+        meal = bundle(aiOne);
+    }
+
+    /**
+     * The resources named by -Ddining.resources, pepper:2 by default
+     */
+    public static ResourceAllocator fromProperties()
+    {
+        return parse(System.getProperty("dining.resources", "pepper:" + Monitor.MAX_PEPPERS));
+    }
+
+    /**
+     * The resources named by a NAME:COUNT,... list
+     */
+    public static ResourceAllocator parse(String pstrSpec)
+    {
+        String[] astrParts = pstrSpec.split(",");
+        String[] astrNames = new String[astrParts.length];
+        int[] aiCounts = new int[astrParts.length];
+        for(int i = 0; i < astrParts.length; i++)
+        {
+            String[] astrField = astrParts[i].trim().split(":");
+            if(astrField.length != 2)
+                throw new IllegalArgumentException("dining.resources must look like pepper:2,salt:1, not \"" + pstrSpec + "\"");
+            astrNames[i] = astrField[0];
+            aiCounts[i] = Integer.parseInt(astrField[1]);
+        }
+        return new ResourceAllocator(astrNames, aiCounts);
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    /**
+     * @return How many diners can have their meal's resources at once
+     */
+    public int capacity()
+    {
+        int iCapacity = Integer.MAX_VALUE;
+        for(int count : counts)
+        {
+            iCapacity = Math.min(iCapacity, count);
+        }
+        return iCapacity;
+    }
+
+    /**
+     * Turns so many of each type into the per-word amounts to take
+     */
+    public long[] bundle(int[] paiAmounts)
+    {
+        long[] alBundle = new long[available.length()];
+        for(int i = 0; i < counts.length; i++)
+        {
+            if(paiAmounts[i] < 0 || paiAmounts[i] > counts[i])
+                throw new IllegalArgumentException("Can not take " + paiAmounts[i] + " " + names[i]);
+            alBundle[word[i]] += (long) paiAmounts[i] << shift[i];
+        }
+        return alBundle;
+    }
+
+    /**
+     * Takes the bundle if all of it is there, without waiting. Fails when
+     * others are waiting, so as not to jump the queue.
+     */
+    public boolean tryAcquire(long[] palBundle)
+    {
+        return waiting == 0 && take(palBundle);
+    }
+
+    /**
+     * Waits for the whole bundle
+     */
+    public void acquire(long[] palBundle)
+    {
+        if(tryAcquire(palBundle))
+            return;
+
+        Waiter oMe = new Waiter(palBundle, null);
+        enqueue(oMe);
+        while(!oMe.granted)
+        {
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Same as acquire(), without blocking
+     *
+     * @param poThen Run once the bundle is taken, if it is not right away,
+     * by whoever gives resources back, once they released the queue. Must
+     * not block: it should only hand the rest of the work to an executor.
+     * @return Whether the bundle was taken right away, in which case poThen
+     * is not run
+     */
+    public boolean acquire(long[] palBundle, Runnable poThen)
+    {
+        if(tryAcquire(palBundle))
+            return true;
+        enqueue(new Waiter(palBundle, poThen));
+        return false;
+    }
+
+    private void enqueue(Waiter poMe)
+    {
+        queueLock.lock();
+        try
+        {
+            queue.add(poMe);
+            waiting++;
+            //Resources may have come back before we were in the queue
+            grant();
+        }
+        finally
+        {
+            unlockAndWake();
+        }
+    }
+
+    public void release(long[] palBundle)
+    {
+        for(int w = 0; w < palBundle.length; w++)
+        {
+            if(palBundle[w] != 0)
+                available.addAndGet(w, palBundle[w]);
+        }
+        if(waiting > 0)
+        {
+            queueLock.lock();
+            try
+            {
+                grant();
+            }
+            finally
+            {
+                unlockAndWake();
+            }
+        }
+    }
+
+    public boolean tryAcquireMeal()
+    {
+        return tryAcquire(meal);
+    }
+
+    public void acquireMeal()
+    {
+        acquire(meal);
+    }
+
+    public boolean acquireMeal(Runnable poThen)
+    {
+        return acquire(meal, poThen);
+    }
+
+    public void releaseMeal()
+    {
+        release(meal);
+    }
+
+    /**
+     * Serves the head of the queue for as long as there is enough for them,
+     * putting them on the pending list. Called while holding queueLock.
+     */
+    private void grant()
+    {
+        Waiter oNext;
+        while((oNext = queue.peek()) != null && take(oNext.bundle))
+        {
+            queue.poll();
+            waiting--;
+            oNext.granted = true;
+            oNext.next = pending;
+            pending = oNext;
+        }
+    }
+
+    /**
+     * Releases queueLock, then unparks or runs the continuation of everyone
+     * served while it was held: a continuation may take locks of its own
+     * (e.g. a monitor's, or an executor's), which must not nest inside it
+     */
+    private void unlockAndWake()
+    {
+        Waiter oWaiter = pending;
+        pending = null;
+        queueLock.unlock();
+        while(oWaiter != null)
+        {
+            //Read before unparking: the waiter is free to go from then on
+            Waiter oNext = oWaiter.next;
+            if(oWaiter.then != null)
+                oWaiter.then.run();
+            else
+                LockSupport.unpark(oWaiter.thread);
+            oWaiter = oNext;
+        }
+    }
+
+    /**
+     * All or nothing: words in increasing order, given back if one falls
+     * short
+     */
+    private boolean take(long[] palBundle)
+    {
+        for(int w = 0; w < palBundle.length; w++)
+        {
+            if(palBundle[w] == 0)
+                continue;
+            if(!take(w, palBundle[w]))
+            {
+                for(int back = w - 1; back >= 0; back--)
+                {
+                    if(palBundle[back] != 0)
+                        available.addAndGet(back, palBundle[back]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean take(int w, long plAmount)
+    {
+        for(;;)
+        {
+            long lNow = available.get(w);
+            //A field short of its amount borrows its guard bit, and only it
+            if((((lNow | guards[w]) - plAmount) & guards[w]) != guards[w])
+                return false;
+            if(available.compareAndSet(w, lNow, lNow - plAmount))
+                return true;
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,258 @@
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Class ScheduleLog
+ * The order in which the monitor moved its philosophers from one status to
+ * the next, in a form a later run can follow.
+ *
+ * Recording appends 8-byte records (int TID, int code) to a memory-mapped
+ * file, behind an 8-byte header (int magic, int version), in native byte
+ * order. The code is the ordinal of the new Monitor.Status, or JOINED or
+ * LEFT. Every record is written while holding the monitor's lock, so their
+ * order is the order things happened in; the file is mapped in chunks and
+ * a record is a couple of stores, and whatever was written survives the
+ * process dying, up to the first zero TID.
+ *
+ * Replaying reads the TIDs that started eating, in order, and the monitor
+ * only lets the next of them take chopsticks and eat. If that philosopher does not show up
+ * within the patience (the run went another way, e.g. a friend got another
+ * TID), they are skipped; once the recording runs out, anyone may eat.
+ *
+ *   -Ddining.record=PATH          where to record
+ *   -Ddining.replay=PATH          the recording to follow
+ *   -Ddining.replay.patience=MS   how long to wait for the next one (1000)
+ *
+ * Only the global engine, at a single table, records and replays.
+ */
+public final class ScheduleLog {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    //Codes after the Status ordinals
+    static final int JOINED = 5;
+    static final int LEFT = 6;
+
+    private static final int MAGIC = 0x44505331;
+    private static final int VERSION = 1;
+    private static final int RECORD = 8;
+    private static final int CHUNK = 1 << 20;
+
+    private final String strRecordFile;
+    private FileChannel channel;
+    private MappedByteBuffer chunk;
+    private long chunkStart = 0;
+    private long records = 0;
+
+    private final String strReplayFile;
+    //The TIDs that started eating, in order, and the next one to eat
+    private int[] grants = new int[0];
+    private int cursor = 0;
+    private int skipped = 0;
+    private final long patienceNanos;
+
+    /**
+     * Constructor: either file may be null
+     */
+    public ScheduleLog(String pstrRecordFile, String pstrReplayFile, long plPatienceMillis)
+    {
+        strRecordFile = pstrRecordFile;
+        strReplayFile = pstrReplayFile;
+        patienceNanos = plPatienceMillis * 1000000L;
+        try
+        {
+            if(pstrReplayFile != null)
+                grants = readGrants(pstrReplayFile);
+            if(pstrRecordFile != null)
+            {
+                channel = FileChannel.open(Path.of(pstrRecordFile), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                map();
+                chunk.putInt(MAGIC);
+                chunk.putInt(VERSION);
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("ScheduleLog:");
+            DiningPhilosophers.reportException(e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The log asked for by -Ddining.record and -Ddining.replay, null if
+     * neither is set
+     */
+    public static ScheduleLog fromProperties()
+    {
+        String strRecord = System.getProperty("dining.record");
+        String strReplay = System.getProperty("dining.replay");
+        if(strRecord == null && strReplay == null)
+            return null;
+        return new ScheduleLog(strRecord, strReplay, Long.getLong("dining.replay.patience", 1000));
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    private void map() throws IOException
+    {
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK);
+        chunk.order(ByteOrder.nativeOrder());
+    }
+
+    private static int[] readGrants(String pstrFile) throws IOException
+    {
+        try(FileChannel oIn = FileChannel.open(Path.of(pstrFile), StandardOpenOption.READ))
+        {
+            if(oIn.size() > Integer.MAX_VALUE)
+                throw new IOException(pstrFile + " is too big to replay");
+            MappedByteBuffer oRecords = oIn.map(FileChannel.MapMode.READ_ONLY, 0, oIn.size());
+            oRecords.order(ByteOrder.nativeOrder());
+            if(oRecords.remaining() < RECORD || oRecords.getInt() != MAGIC || oRecords.getInt() != VERSION)
+                throw new IOException(pstrFile + " is not a schedule recording");
+
+            int[] aiGrants = new int[64];
+            int iGrants = 0;
+            while(oRecords.remaining() >= RECORD)
+            {
+                int iTID = oRecords.getInt();
+                int iCode = oRecords.getInt();
+                if(iTID == 0)
+                    break;
+                if(iCode != Monitor.Status.eating.ordinal())
+                    continue;
+                if(iGrants == aiGrants.length)
+                    aiGrants = Arrays.copyOf(aiGrants, iGrants * 2);
+                aiGrants[iGrants++] = iTID;
+            }
+            return Arrays.copyOf(aiGrants, iGrants);
+        }
+    }
+
+    public boolean isReplaying()
+    {
+        return cursor < grants.length;
+    }
+
+    /**
+     * Appends one record. Called while holding the monitor's lock.
+     */
+    public void record(int piTID, int piCode)
+    {
+        if(channel == null)
+            return;
+        try
+        {
+            if(!chunk.hasRemaining())
+            {
+                chunkStart += CHUNK;
+                map();
+            }
+            chunk.putInt(piTID);
+            chunk.putInt(piCode);
+            records++;
+        }
+        catch(IOException e)
+        {
+            System.err.println("ScheduleLog.record():");
+            DiningPhilosophers.reportException(e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return Whether the recording lets this philosopher eat now
+     */
+    public boolean mayEat(int piTID)
+    {
+        return cursor >= grants.length || grants[cursor] == piTID;
+    }
+
+    /**
+     * The philosopher started eating: the next one in the recording is up
+     */
+    public void ate(int piTID)
+    {
+        if(cursor < grants.length && grants[cursor] == piTID)
+            cursor++;
+    }
+
+    /**
+     * @return The TID who eats next in the recording, 0 once it is over
+     */
+    public int next()
+    {
+        return (cursor < grants.length) ? grants[cursor] : 0;
+    }
+
+    /**
+     * @return How many grants were replayed or skipped so far, to tell
+     * whether the replay moved on while someone waited
+     */
+    public int position()
+    {
+        return cursor;
+    }
+
+    public long patienceNanos()
+    {
+        return patienceNanos;
+    }
+
+    /**
+     * Gives up on the next one in the recording, who did not show up
+     */
+    public void skip()
+    {
+        if(cursor < grants.length)
+        {
+            cursor++;
+            skipped++;
+        }
+    }
+
+    /**
+     * Cuts the recording to what was written and says how it went. Called
+     * once everyone has left.
+     */
+    public void close(PrintStream poOut)
+    {
+        if(channel != null)
+        {
+            try
+            {
+                chunk.force();
+                channel.truncate(chunkStart + chunk.position());
+                channel.close();
+            }
+            catch(IOException e)
+            {
+                System.err.println("ScheduleLog.close():");
+                DiningPhilosophers.reportException(e);
+            }
+            channel = null;
+            poOut.println("Recorded " + records + " transitions to " + strRecordFile + ".");
+        }
+        if(strReplayFile != null)
+        {
+            poOut.println("Replayed " + (cursor - skipped) + " of " + grants.length + " meals from "
+                    + strReplayFile + ", " + skipped + " skipped.");
+        }
+    }
+}
+
+// EOF
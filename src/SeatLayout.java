@@ -0,0 +1,91 @@
+
+/**
+ * Enum SeatLayout
+ * Where the per-seat words of an engine (the state of a seat, the owner of
+ * a chopstick) sit in their array. Neighbours at the table are the ones who
+ * contend, and with the words of seats i and i + 1 on the same cache line,
+ * every write by one of them takes the line away from the other, even
+ * though they do not share the word (false sharing).
+ *
+ *   packed   seat i at i: WORDS_PER_LINE seats per line
+ *   padded   seat i at i * WORDS_PER_LINE: a line per seat, for
+ *            WORDS_PER_LINE times the memory
+ *   striped  consecutive seats a row apart, rows of WORDS_PER_LINE seats:
+ *            the seats sharing a line are WORDS_PER_LINE apart at the
+ *            table, for no more memory than rounding up to
+ *            WORDS_PER_LINE rows
+ *
+ * A word is an int or a (compressed) reference. Chosen with
+ * -Ddining.layout (striped). Only the engines that write seats from
+ * several threads at once use it: the global engine writes them under its
+ * one lock.
+ */
+public enum SeatLayout {
+
+    packed
+    {
+        int length(int piSeats)
+        {
+            return piSeats;
+        }
+
+        int slot(int piSeat, int piLength)
+        {
+            return piSeat;
+        }
+    },
+
+    padded
+    {
+        int length(int piSeats)
+        {
+            return piSeats * WORDS_PER_LINE;
+        }
+
+        int slot(int piSeat, int piLength)
+        {
+            return piSeat * WORDS_PER_LINE;
+        }
+    },
+
+    striped
+    {
+        int length(int piSeats)
+        {
+            //At least a line's worth of rows, so that a row is a line apart
+            return Math.max(WORDS_PER_LINE, (piSeats + WORDS_PER_LINE - 1) / WORDS_PER_LINE) * WORDS_PER_LINE;
+        }
+
+        int slot(int piSeat, int piLength)
+        {
+            int iRows = piLength / WORDS_PER_LINE;
+            return (piSeat % WORDS_PER_LINE) * iRows + piSeat / WORDS_PER_LINE;
+        }
+    };
+
+    /**
+     * 4-byte words in a 64-byte cache line
+     */
+    static final int WORDS_PER_LINE = 16;
+
+    /**
+     * @return The length of an array for so many seats
+     */
+    abstract int length(int piSeats);
+
+    /**
+     * @param piLength The length of the array, as given by length()
+     * @return Where the word of the seat is in the array
+     */
+    abstract int slot(int piSeat, int piLength);
+
+    /**
+     * The layout set with -Ddining.layout
+     */
+    static SeatLayout fromProperties()
+    {
+        return valueOf(System.getProperty("dining.layout", "striped"));
+    }
+}
+
+// EOF
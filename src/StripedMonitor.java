@@ -0,0 +1,550 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class StripedMonitor
+ * Same arbitration rules as Monitor, but a pickUp()/putDown() only locks the
+ * stripes of the seats it actually reads, so that philosophers on opposite
+ * sides of a large table no longer block each other.
+ *
+ * Stripes are keyed by TID (not by seat) so that a philosopher's condition
+ * stays bound to the same lock when the seats shift on leaveTable(). Stripes
+ * are always locked in increasing index order, so there is no deadlock.
+ *
+ * Every Topology is an epoch of the table: diners read it without a lock,
+ * and it only changes as a whole. Joins and leaves are queued, and whoever
+ * gets to apply them applies every change queued so far in one batch: one
+ * pass over the seats, while holding every stripe, then the next Topology
+ * is published. Under heavy churn, the table stops once per batch rather
+ * than once per change.
+ */
+public class StripedMonitor extends Monitor {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    private final ReentrantLock[] stripes;
+    private final SeatLayout layout = SeatLayout.fromProperties();
+
+    /**
+     * Who sits where. Replaced (never modified in place, except for the
+     * state of a seat) while holding every stripe.
+     */
+    private volatile Topology topology;
+
+    /**
+     * Joins and leaves not applied yet, and who may apply them
+     */
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<Change>();
+    private final ReentrantLock membership = new ReentrantLock();
+
+    private static final class Change
+    {
+        final int tid;
+        //Joining: who invited them, 0 for nobody. Leaving: -1.
+        final int host;
+        //Only read and written while holding membership
+        boolean applied = false;
+
+        Change(int tid, int host)
+        {
+            this.tid = tid;
+            this.host = host;
+        }
+
+        boolean leaving()
+        {
+            return host < 0;
+        }
+    }
+
+    /**
+     * Snapshot of the seating arrangement. The status of seat s is only read
+     * or written while holding the stripe of tids[s]. Statuses are written
+     * by whoever holds the stripes around a seat, so they are laid out by
+     * the SeatLayout: the only per-seat words written from several threads.
+     */
+    private static final class Topology
+    {
+        final int[] tids;
+        private final SeatLayout layout;
+        private final Status[] state;
+        final int[] priority;
+        final Condition[] chopsticks;
+        //The seat of each TID, -1 for a TID not at the table
+        private final int[] seats;
+
+        /**
+         * @param state The status of each seat, in seat order
+         */
+        Topology(int[] tids, Status[] state, int[] priority, Condition[] chopsticks, SeatLayout layout)
+        {
+            this.tids = tids;
+            this.layout = layout;
+            this.state = new Status[layout.length(tids.length)];
+            for(int i = 0; i < tids.length; i++)
+            {
+                this.state[layout.slot(i, this.state.length)] = state[i];
+            }
+            this.priority = priority;
+            this.chopsticks = chopsticks;
+            int iLastTID = 0;
+            for(int tid : tids)
+            {
+                iLastTID = Math.max(iLastTID, tid);
+            }
+            seats = new int[iLastTID + 1];
+            Arrays.fill(seats, -1);
+            for(int i = 0; i < tids.length; i++)
+            {
+                seats[tids[i]] = i;
+            }
+        }
+
+        int seatOf(int tid)
+        {
+            return seats[tid];
+        }
+
+        int size()
+        {
+            return tids.length;
+        }
+
+        Status status(int id)
+        {
+            return state[layout.slot(id, state.length)];
+        }
+
+        void status(int id, Status status)
+        {
+            state[layout.slot(id, state.length)] = status;
+        }
+
+        int left(int id)
+        {
+            return (id > 0) ? id - 1 : tids.length - 1;
+        }
+
+        int right(int id)
+        {
+            return (id < tids.length - 1) ? id + 1 : 0;
+        }
+    }
+
+    /**
+     * Constructor, one stripe per seat up to a few per core
+     */
+    public StripedMonitor(int piNumberOfPhilosophers)
+    {
+        this(piNumberOfPhilosophers,
+            Math.min(piNumberOfPhilosophers, 16 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    public StripedMonitor(int piNumberOfPhilosophers, int piStripes)
+    {
+        this(firstTIDs(piNumberOfPhilosophers), piStripes);
+    }
+
+    /**
+     * Constructor, for a table whose philosophers have the given TIDs
+     */
+    public StripedMonitor(int[] paiTIDs)
+    {
+        this(paiTIDs, Math.min(paiTIDs.length, 16 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    public StripedMonitor(int[] paiTIDs, int piStripes)
+    {
+        nbPhil = paiTIDs.length;
+        stripes = new ReentrantLock[Math.max(1, piStripes)];
+        for(int i = 0; i < stripes.length; i++)
+        {
+            stripes[i] = new ReentrantLock();
+        }
+
+        int[] tids = paiTIDs.clone();
+        Status[] state = new Status[nbPhil];
+        Condition[] chopsticks = new Condition[nbPhil];
+        for(int i = 0; i < nbPhil; i++)
+        {
+            state[i] = Status.full;
+            chopsticks[i] = stripeOf(tids[i]).newCondition();
+        }
+        int[] priority = shufflePriorities(nbPhil);
+        logPriorities(tids, priority);
+        topology = new Topology(tids, state, priority, chopsticks, layout);
+    }
+
+    /*
+	 * -------------------------------
+	 * User-defined monitor procedures
+	 * -------------------------------
+     */
+    private ReentrantLock stripeOf(int TID)
+    {
+        return stripes[TID % stripes.length];
+    }
+
+    /**
+     * Locks the stripes of the seats within piRadius of piSeat, in increasing
+     * stripe order. Allocation-free: the stripes are picked one at a time, in
+     * order, from the few seats around.
+     */
+    private void lockAround(Topology t, int piSeat, int piRadius)
+    {
+        int stripe = -1;
+        while((stripe = nextStripe(t, piSeat, piRadius, stripe)) < stripes.length)
+        {
+            stripes[stripe].lock();
+        }
+    }
+
+    /**
+     * Unlocks what lockAround() locked, on the same topology, but for the
+     * given stripe (-1 for none)
+     */
+    private void unlockAround(Topology t, int piSeat, int piRadius, int piKept)
+    {
+        int stripe = -1;
+        while((stripe = nextStripe(t, piSeat, piRadius, stripe)) < stripes.length)
+        {
+            if(stripe != piKept)
+                stripes[stripe].unlock();
+        }
+    }
+
+    /**
+     * @return The lowest stripe above piAbove of the seats within piRadius
+     * of piSeat, stripes.length if there is none
+     */
+    private int nextStripe(Topology t, int piSeat, int piRadius, int piAbove)
+    {
+        int n = Math.min(2 * piRadius + 1, t.size());
+        int seat = piSeat;
+        for(int i = 0; i < piRadius; i++)
+        {
+            seat = t.left(seat);
+        }
+        int next = stripes.length;
+        for(int i = 0; i < n; i++)
+        {
+            int stripe = t.tids[seat] % stripes.length;
+            if(stripe > piAbove && stripe < next)
+                next = stripe;
+            seat = t.right(seat);
+        }
+        return next;
+    }
+
+    private void lockAll()
+    {
+        for(ReentrantLock stripe : stripes)
+        {
+            stripe.lock();
+        }
+    }
+
+    private void unlockAll()
+    {
+        for(int i = stripes.length - 1; i >= 0; i--)
+        {
+            stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Same as Monitor.check(), on the given topology
+     */
+    private void check(Topology t, int id)
+    {
+        int left = t.left(id);
+        int right = t.right(id);
+        Status current = t.status(id);
+        Status next = arbitrate(current, t.status(left), t.status(right),
+                t.priority[id], t.priority[left], t.priority[right]);
+        if(next != current && next == Status.hasRightChopstick)
+        {
+            EventLog.log(EventLog.TOOK_RIGHT_CHOPSTICK, t.tids[id], id);
+            DiningMetrics.oneChopstick(t.tids[id]);
+        }
+        else if(next != current && next == Status.hasLeftChopstick)
+        {
+            EventLog.log(EventLog.TOOK_LEFT_CHOPSTICK, t.tids[id], id);
+            DiningMetrics.oneChopstick(t.tids[id]);
+        }
+        t.status(id, next);
+    }
+
+    /**
+     * Makes the philosopher hungry and waits until they are eating.
+     * Used by pickUp() and leaveTable().
+     * @return When the philosopher started waiting, 0 if they did not
+     */
+    private long acquireChopsticks(final int piTID) throws InterruptedException
+    {
+        for(;;)
+        {
+            Topology t = topology;
+            int id = t.seatOf(piTID);
+            lockAround(t, id, 1);
+            if(t != topology)
+            {
+                //Someone joined or left while we were locking, try again
+                unlockAround(t, id, 1, -1);
+                continue;
+            }
+
+            t.status(id, Status.hungry);
+            check(t, id);
+            if(t.status(id) == Status.eating)
+            {
+                unlockAround(t, id, 1, -1);
+                return 0;
+            }
+
+            //Keep only our own stripe: neighbours need it to signal us,
+            //so the wakeup can not be lost.
+            ReentrantLock mine = stripeOf(piTID);
+            unlockAround(t, id, 1, piTID % stripes.length);
+            EventLog.log(EventLog.WAITING_TO_EAT, piTID, id);
+            long since = DiningMetrics.now();
+            try
+            {
+                Condition chopstick = t.chopsticks[id];
+                for(;;)
+                {
+                    chopstick.await();
+                    //The topology may have been replaced while we were waiting
+                    Topology now = topology;
+                    if(now.status(now.seatOf(piTID)) == Status.eating)
+                        return since;
+                }
+            }
+            finally
+            {
+                mine.unlock();
+            }
+        }
+    }
+
+    /**
+     * Grants request (returns) to eat when both chopsticks/forks are available.
+     * Else forces the philosopher to wait()
+     */
+    @Override
+    public void pickUp(final int piTID)
+    {
+        try
+        {
+            long hungrySince = acquireChopsticks(piTID);
+            if(hungrySince != 0)
+                DiningMetrics.hungry(piTID, hungrySince);
+
+            takeCondiments(piTID);
+        }
+        catch (InterruptedException e)
+        {
+            System.err.println("StripedMonitor.pickUp():");
+            DiningPhilosophers.reportException(e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * When a given philosopher's done eating, they put the chopstiks/forks down
+     * and let their neighbours know they are available.
+     */
+    @Override
+    public void putDown(final int piTID)
+    {
+        putDownCondiments(piTID);
+        DiningMetrics.meal(piTID);
+
+        for(;;)
+        {
+            Topology t = topology;
+            int id = t.seatOf(piTID);
+            //check() of a neighbour reads the neighbour's neighbours
+            lockAround(t, id, 2);
+            if(t != topology)
+            {
+                unlockAround(t, id, 2, -1);
+                continue;
+            }
+
+            t.status(id, Status.full);
+            wakeIfEating(t, t.left(id));
+            wakeIfEating(t, t.right(id));
+
+            unlockAround(t, id, 2, -1);
+            return;
+        }
+    }
+
+    private void wakeIfEating(Topology t, int id)
+    {
+        check(t, id);
+        if(t.status(id) == Status.eating)
+            t.chopsticks[id].signal();
+    }
+
+    /**
+     * Allow a philosopher to join the table, to the right of their host if
+     * the host sits here, else at the last seat. Returns once they are
+     * seated.
+     */
+    @Override
+    public void joinTable(int threadId, int piHostTID)
+    {
+        reconfigure(new Change(threadId, Math.max(0, piHostTID)));
+    }
+
+    /**
+     * Allow a philosopher to leave the table, once their neighbours are not
+     * eating.
+     * @param threadID The thread ID of the philosopher that wants to leave
+     */
+    @Override
+    public void leaveTable(int threadID)
+    {
+        try
+        {
+            acquireChopsticks(threadID);
+        }
+        catch(InterruptedException e)
+        {
+            System.err.println("StripedMonitor.leaveTable(): ");
+            DiningPhilosophers.reportException(e);
+            System.exit(1);
+        }
+
+        //Eating until the change is applied: our neighbours can not eat
+        //anyway, and nobody else waits for us
+        reconfigure(new Change(threadID, -1));
+    }
+
+    /**
+     * Queues the change, then applies it along with every other change
+     * queued so far, unless whoever held membership before us already did
+     */
+    private void reconfigure(Change poChange)
+    {
+        changes.add(poChange);
+        membership.lock();
+        try
+        {
+            if(!poChange.applied)
+                applyChanges();
+        }
+        finally
+        {
+            membership.unlock();
+        }
+    }
+
+    /**
+     * Publishes the next Topology, with every queued change in it, in one
+     * pass over the seats. Called while holding membership.
+     */
+    private void applyChanges()
+    {
+        ArrayList<Change> batch = new ArrayList<Change>();
+        HashMap<Integer, Change> leaving = new HashMap<Integer, Change>();
+        //The friends to seat to the right of each host, in order
+        LinkedHashMap<Integer, ArrayList<Change>> guests = new LinkedHashMap<Integer, ArrayList<Change>>();
+        Change change;
+        while((change = changes.poll()) != null)
+        {
+            batch.add(change);
+            if(change.leaving())
+                leaving.put(change.tid, change);
+            else
+                guests.computeIfAbsent(change.host, host -> new ArrayList<Change>()).add(change);
+        }
+
+        lockAll();
+        Topology t = topology;
+        int n = t.size() + batch.size() - 2 * leaving.size();
+        int[] tids = new int[n];
+        Status[] state = new Status[n];
+        int[] priority = new int[n];
+        Condition[] chopsticks = new Condition[n];
+        //Where each seat was in t, -1 for a friend who just joined
+        int[] origin = new int[n];
+        Arrays.fill(origin, -1);
+        int to = 0;
+        for(int from = 0; from < t.size(); from++)
+        {
+            int tid = t.tids[from];
+            if(leaving.containsKey(tid))
+            {
+                EventLog.log(EventLog.LEFT_TABLE, tid, from);
+            }
+            else
+            {
+                tids[to] = tid;
+                state[to] = t.status(from);
+                priority[to] = t.priority[from];
+                chopsticks[to] = t.chopsticks[from];
+                origin[to] = from;
+                to++;
+            }
+            //A host who left in this batch still seats their friends where
+            //they sat
+            ArrayList<Change> friends = guests.remove(tid);
+            if(friends != null)
+                to = seat(friends, tids, state, priority, chopsticks, to);
+        }
+        //Friends of nobody here, at the last seat
+        for(ArrayList<Change> friends : guests.values())
+        {
+            to = seat(friends, tids, state, priority, chopsticks, to);
+        }
+        Topology now = new Topology(tids, state, priority, chopsticks, layout);
+        topology = now;
+        nbPhil = n;
+        //Whoever has a new neighbour may be able to eat now
+        for(int id = 0; id < n; id++)
+        {
+            int from = origin[id];
+            if(from >= 0 && (origin[now.left(id)] != t.left(from) || origin[now.right(id)] != t.right(from)))
+                wakeIfEating(now, id);
+        }
+        unlockAll();
+
+        for(Change applied : batch)
+        {
+            applied.applied = true;
+        }
+    }
+
+    /**
+     * Seats the given friends from seat to on, in order
+     * @return The seat after the last of them
+     */
+    private int seat(ArrayList<Change> paoFriends, int[] tids, Status[] state, int[] priority,
+            Condition[] chopsticks, int to)
+    {
+        for(Change friend : paoFriends)
+        {
+            tids[to] = friend.tid;
+            state[to] = Status.full;
+            priority[to] = friend.tid;
+            chopsticks[to] = stripeOf(friend.tid).newCondition();
+            EventLog.log(EventLog.JOINED_TABLE, friend.tid, to, friend.tid);
+            to++;
+        }
+        return to;
+    }
+}
+
+// EOF
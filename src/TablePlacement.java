@@ -0,0 +1,69 @@
+
+/**
+ * Interface TablePlacement
+ * Decides at which table of a DiningHall a philosopher sits down.
+ */
+public interface TablePlacement {
+
+    /**
+     * @param piTID The philosopher to seat
+     * @param paiLoads How many philosophers sit at each table right now
+     * @return The table to seat them at, from 0 to paiLoads.length - 1
+     */
+    int place(int piTID, int[] paiLoads);
+
+    /**
+     * TIDs 1, 2, ... are dealt to the tables in turn
+     */
+    TablePlacement ROUND_ROBIN = (piTID, paiLoads) -> (piTID - 1) % paiLoads.length;
+
+    /**
+     * The table with the fewest philosophers, the first one on a tie
+     */
+    TablePlacement LEAST_LOADED = (piTID, paiLoads) ->
+    {
+        int iBest = 0;
+        for(int i = 1; i < paiLoads.length; i++)
+        {
+            if(paiLoads[i] < paiLoads[iBest])
+                iBest = i;
+        }
+        return iBest;
+    };
+
+    /**
+     * TIDs 1 to piPhilosophers are cut into one run of consecutive TIDs per
+     * table. Each table only needs room for its own run of TIDs, which is
+     * what keeps Monitor's TID-indexed seats small. Later TIDs go to the
+     * least loaded table.
+     */
+    static TablePlacement blocks(int piPhilosophers)
+    {
+        return (piTID, paiLoads) ->
+        {
+            if(piTID > piPhilosophers)
+                return LEAST_LOADED.place(piTID, paiLoads);
+            return (int) ((piTID - 1L) * paiLoads.length / piPhilosophers);
+        };
+    }
+
+    /**
+     * @return The placement called pstrName: blocks, roundrobin or leastloaded
+     */
+    static TablePlacement forName(String pstrName, int piPhilosophers)
+    {
+        switch(pstrName)
+        {
+            case "blocks":
+                return blocks(piPhilosophers);
+            case "roundrobin":
+                return ROUND_ROBIN;
+            case "leastloaded":
+                return LEAST_LOADED;
+            default:
+                throw new IllegalArgumentException("dining.placement must be blocks, roundrobin or leastloaded, not \"" + pstrName + "\"");
+        }
+    }
+}
+
+// EOF
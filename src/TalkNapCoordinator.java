@@ -0,0 +1,343 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class TalkNapCoordinator
+ * Who may talk and who may nap: any number of nappers at once, or a single
+ * talker, never both. A reader-writer lock with the nappers as readers,
+ * kept apart from the lock the chopsticks are arbitrated under.
+ *
+ * Phase-fair: once a talker is waiting, new nappers wait behind them; when
+ * the talker is done, every napper who waited goes in as one batch, before
+ * the next talker. So a talker waits for at most one batch of nappers
+ * (plus the talkers ahead of them, served in order), and a napper waits for
+ * at most one talker.
+ *
+ * Nappers come and go through striped counters, ingress and egress, so
+ * that they do not all hit the same word. The talker reads the counters to
+ * know when the nappers are all gone.
+ *
+ * Whoever waits is either a parked thread or a continuation, run by whoever
+ * lets them in (see the requestTalk() and requestNap() taking a Runnable),
+ * so that a task-based runtime never blocks a thread here.
+ */
+public class TalkNapCoordinator {
+
+    /*
+	 * ------------
+	 * Data members
+	 * ------------
+     */
+    //Ints between two stripes, to keep them on different cache lines
+    private static final int PADDING = 16;
+
+    private final int stripes;
+    private final AtomicIntegerArray ingress;
+    private final AtomicIntegerArray egress;
+
+    /**
+     * Odd while a talker holds the turn: waiting for the nappers to leave,
+     * or talking. Only written while holding gate.
+     */
+    private volatile int talkPhase = 0;
+
+    //Who holds the turn, set before talkPhase becomes odd
+    private volatile Waiter talker;
+
+    //Under gate: talkers waiting for the turn, in order, and nappers who
+    //arrived during a talk phase, waiting for the next batch
+    private final ReentrantLock gate = new ReentrantLock();
+    private final ArrayDeque<Waiter> talkers = new ArrayDeque<Waiter>();
+    private ArrayList<Waiter> nappers = new ArrayList<Waiter>();
+
+    /**
+     * A thread parked until it may go on, or a continuation to run then.
+     * Granted once only: the talker may be let in by any napper leaving.
+     */
+    private static final class Waiter
+    {
+        final Thread thread;
+        final Runnable then;
+        final AtomicBoolean granted = new AtomicBoolean();
+
+        Waiter(Runnable then)
+        {
+            this.thread = (then == null) ? Thread.currentThread() : null;
+            this.then = then;
+        }
+
+        boolean claim()
+        {
+            return granted.compareAndSet(false, true);
+        }
+
+        void wake()
+        {
+            if(then != null)
+                then.run();
+            else
+                LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Constructor, a few stripes per core
+     */
+    public TalkNapCoordinator()
+    {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public TalkNapCoordinator(int piStripes)
+    {
+        stripes = Math.max(1, piStripes);
+        ingress = new AtomicIntegerArray(stripes * PADDING);
+        egress = new AtomicIntegerArray(stripes * PADDING);
+    }
+
+    /*
+	 * -------
+	 * Methods
+	 * -------
+     */
+    private int slot(int piTID)
+    {
+        return Math.floorMod(piTID, stripes) * PADDING;
+    }
+
+    /**
+     * Waits until no one else talks and no one naps
+     */
+    public void requestTalk(final int piTID) throws InterruptedException
+    {
+        Waiter oMe = new Waiter(null);
+        if(enterTalk(oMe))
+            return;
+
+        //The talker before us, or the last napper out, unparks us. Only
+        //waiting for the turn can be interrupted: once we hold it, the
+        //nappers are bound to leave.
+        long lSince = DiningMetrics.now();
+        boolean bInterrupted = false;
+        while(!oMe.granted.get())
+        {
+            LockSupport.park(this);
+            if(Thread.interrupted())
+            {
+                gate.lock();
+                boolean bQueued = talkers.remove(oMe);
+                gate.unlock();
+                if(bQueued)
+                    throw new InterruptedException();
+                bInterrupted = true;
+            }
+        }
+        if(bInterrupted)
+            Thread.currentThread().interrupt();
+        DiningMetrics.talkWait(piTID, lSince);
+    }
+
+    /**
+     * Same as requestTalk(), without blocking
+     *
+     * @param poThen Run once the philosopher may talk, if they may not
+     * right away, by whoever lets them. Must not block: it should only hand
+     * the talk to an executor.
+     * @return Whether the philosopher may talk right away, in which case
+     * poThen is not run
+     */
+    public boolean requestTalk(final int piTID, final Runnable poThen)
+    {
+        long lSince = DiningMetrics.now();
+        return enterTalk(new Waiter(() -> {
+            DiningMetrics.talkWait(piTID, lSince);
+            poThen.run();
+        }));
+    }
+
+    /**
+     * Takes the turn, or queues up for it
+     *
+     * @return Whether the waiter may talk now, else they are woken up
+     */
+    private boolean enterTalk(Waiter poMe)
+    {
+        gate.lock();
+        if((talkPhase & 1) == 1)
+        {
+            talkers.add(poMe);
+            gate.unlock();
+            return false;
+        }
+        talker = poMe;
+        talkPhase++;
+        gate.unlock();
+        //Either we see the last napper out, or they see us
+        return nappersGone() && poMe.claim();
+    }
+
+    /**
+     * Egress first: every exit counted there has its entry counted in
+     * ingress, so equal sums mean no napper is left. A stripe does not
+     * balance on its own (a batch is counted in at the first stripe, and
+     * each napper out at their own), and wraps around in a long dinner: the
+     * sums are compared as ints, wrapping the same way, since fewer than
+     * 2^32 nappers are ever in at once.
+     */
+    private boolean nappersGone()
+    {
+        int iOut = 0;
+        for(int i = 0; i < stripes; i++)
+        {
+            iOut += egress.get(i * PADDING);
+        }
+        int iIn = 0;
+        for(int i = 0; i < stripes; i++)
+        {
+            iIn += ingress.get(i * PADDING);
+        }
+        return iIn == iOut;
+    }
+
+    /**
+     * Lets in, as one batch, the nappers who waited for this talk, then
+     * hands the turn to the next talker
+     */
+    public void endTalk()
+    {
+        gate.lock();
+        ArrayList<Waiter> aoBatch = nappers;
+        if(!aoBatch.isEmpty())
+        {
+            //Counted in on their behalf: they only have to leave
+            ingress.addAndGet(0, aoBatch.size());
+            nappers = new ArrayList<Waiter>();
+        }
+        talkPhase++;
+        Waiter oNext = talkers.poll();
+        if(oNext != null)
+        {
+            talker = oNext;
+            talkPhase++;
+        }
+        gate.unlock();
+
+        for(Waiter oNapper : aoBatch)
+        {
+            if(oNapper.claim())
+                oNapper.wake();
+        }
+        if(oNext != null && nappersGone() && oNext.claim())
+            oNext.wake();
+    }
+
+    /**
+     * Waits until no one talks, nor waits to talk
+     */
+    public void requestNap(final int piTID)
+    {
+        if(tryNap(piTID))
+            return;
+
+        long lSince = DiningMetrics.now();
+        Waiter oMe = new Waiter(null);
+        //Uninterruptibly: the talker counts us in, we must leave
+        if(!queueNapper(piTID, oMe))
+        {
+            while(!oMe.granted.get())
+            {
+                LockSupport.park(this);
+            }
+        }
+        DiningMetrics.napWait(piTID, lSince);
+    }
+
+    /**
+     * Same as requestNap(), without blocking
+     *
+     * @param poThen Run once the philosopher may nap, if they may not
+     * right away, by the talker who lets them. Must not block.
+     * @return Whether the philosopher may nap right away, in which case
+     * poThen is not run
+     */
+    public boolean requestNap(final int piTID, final Runnable poThen)
+    {
+        if(tryNap(piTID))
+            return true;
+
+        long lSince = DiningMetrics.now();
+        if(!queueNapper(piTID, new Waiter(() -> {
+            DiningMetrics.napWait(piTID, lSince);
+            poThen.run();
+        })))
+            return false;
+        DiningMetrics.napWait(piTID, lSince);
+        return true;
+    }
+
+    /**
+     * Goes in if nobody talks nor waits to talk, without taking gate
+     */
+    private boolean tryNap(final int piTID)
+    {
+        int iSlot = slot(piTID);
+        int iPhase = talkPhase;
+        if((iPhase & 1) == 1)
+            return false;
+        ingress.incrementAndGet(iSlot);
+        //A talker who came in meanwhile has either seen us, or we see them
+        if(talkPhase == iPhase)
+            return true;
+        leave(iSlot);
+        return false;
+    }
+
+    /**
+     * Goes in if the talk ended while we were getting here, else waits for
+     * the next batch. No talk can start or end while we hold gate.
+     *
+     * @return Whether the napper went in, else they are woken up
+     */
+    private boolean queueNapper(final int piTID, Waiter poMe)
+    {
+        gate.lock();
+        try
+        {
+            if((talkPhase & 1) == 0)
+            {
+                ingress.incrementAndGet(slot(piTID));
+                return true;
+            }
+            nappers.add(poMe);
+            return false;
+        }
+        finally
+        {
+            gate.unlock();
+        }
+    }
+
+    public void endNap(final int piTID)
+    {
+        leave(slot(piTID));
+    }
+
+    /**
+     * The last napper out lets the talker in
+     */
+    private void leave(int piSlot)
+    {
+        egress.incrementAndGet(piSlot);
+        if((talkPhase & 1) == 0)
+            return;
+        Waiter oTalker = talker;
+        if(oTalker != null && !oTalker.granted.get() && nappersGone() && oTalker.claim())
+            oTalker.wake();
+    }
+}
+
+// EOF
@@ -1,14 +1,31 @@
 package common;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Class BaseThread Simply one customized base class for many of our own
  * threads.
  *
- * An attempt to maintain an automatic unique TID (thread ID) among all the
- * derivatives and allow setting your own if needed. Plus some methods for the
- * sync exercises.
+ * Maintains an automatic unique TID (thread ID) among all the derivatives
+ * and allows setting your own if needed. Plus some methods for the sync
+ * exercises.
+ *
+ * TIDs are handed out atomically, so threads may be created from any number
+ * of threads at once. A thread that is done with its TID (e.g. a philosopher
+ * who left the table) gives it back with retireTID(), and the smallest TID
+ * given back is handed out first, so that TIDs stay dense. Whoever gets a
+ * TID given back is its next generation (getGeneration()), which their
+ * random numbers derive from too, so that they do not replay the ones of
+ * whoever had it before.
+ *
+ * The turn is an atomic counter: turnTestAndSet() passes it on with a CAS,
+ * and awaitTurn() parks until it is this thread's turn, to be unparked by
+ * whoever passes the turn to it, so that threads can go one after the
+ * other without spinning.
  *
  * $Revision: 1.2 $ $Last Revision Date: 2019/03/11 $
  *
@@ -23,19 +40,55 @@ public class BaseThread extends Thread {
      */
 
     /**
-     * Preserves value across all instances
+     * Preserves value across all instances: the next TID never handed out
+     */
+    private static final AtomicInteger soNextTID = new AtomicInteger(1);
+
+    /**
+     * TIDs given back, to be handed out again, smallest first
      */
-    public static int siNextTID = 1;
+    private static final ConcurrentSkipListSet<Integer> soFreeTIDs = new ConcurrentSkipListSet<Integer>();
+
+    /**
+     * How many times each TID was given back so far, by TID
+     */
+    private static final ConcurrentHashMap<Integer, Integer> soGenerations = new ConcurrentHashMap<Integer, Integer>();
 
     /**
      * Our Thread ID
      */
     protected int iTID;
 
+    /**
+     * How many threads had our TID before us
+     */
+    private int iGeneration = 0;
+
     /**
      * TID of a thread to proceed to the phase II
      */
-    private static int siTurn = 1;
+    private static final AtomicInteger soTurn = new AtomicInteger(1);
+
+    /**
+     * Threads parked in awaitTurn(), by TID
+     */
+    private static final ConcurrentHashMap<Integer, Thread> soTurnWaiters = new ConcurrentHashMap<Integer, Thread>();
+
+    /**
+     * Every thread's random numbers derive from this seed and its TID
+     */
+    private static long slRandomSeed = 64;
+
+    /**
+     * The BaseThread whose run() a thread carries, if it is not that
+     * BaseThread itself (see carry())
+     */
+    private static final ThreadLocal<BaseThread> soCarried = new ThreadLocal<BaseThread>();
+
+    /**
+     * This thread's own random numbers, only to be used by this thread
+     */
+    private SplittableRandom oRandom;
 
     /*
 	 * ------------
@@ -76,12 +129,116 @@ public class BaseThread extends Thread {
         return this.iTID;
     }
 
+    /**
+     * @return How many threads had our TID before us, 0 if none did
+     */
+    public final int getGeneration() {
+        return this.iGeneration;
+    }
+
+    /**
+     * Runs this thread's run() on the calling thread, e.g. a virtual
+     * thread, which current() then tells is carrying this one
+     */
+    public final void carry() {
+        soCarried.set(this);
+        try {
+            run();
+        } finally {
+            soCarried.remove();
+        }
+    }
+
+    /**
+     * @return The BaseThread the calling thread is, or carries, null if
+     * neither
+     */
+    public static BaseThread current() {
+        Thread oThread = Thread.currentThread();
+        if (oThread instanceof BaseThread) {
+            return (BaseThread) oThread;
+        }
+        return soCarried.get();
+    }
+
+    /**
+     * This thread's stream of random numbers. Not shared with any other
+     * thread, so nothing to contend on, and a function of the seed, the TID
+     * and its generation only, so the same seed gives every thread the same
+     * numbers.
+     *
+     * @return The stream, only to be used by the thread running this one
+     */
+    public final SplittableRandom random() {
+        if (this.oRandom == null) {
+            //The first generation keeps the numbers TIDs always had
+            this.oRandom = new SplittableRandom(mix64(slRandomSeed + mix64(this.iTID)
+                    + 0x9e3779b97f4a7c15L * this.iGeneration));
+        }
+        return this.oRandom;
+    }
+
+    /**
+     * Seeds the random numbers of threads that have not drawn any yet.
+     * Should be set before the threads are started.
+     */
+    public static void setRandomSeed(long plSeed) {
+        slRandomSeed = plSeed;
+    }
+
+    /**
+     * Scrambles consecutive values (seeds, TIDs) into unrelated ones
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
     /**
      * Sets internal TID and updates next TID on contruction time, so it's
-     * private.
+     * private. Takes a TID given back if there is one.
      */
     private final void setTID() {
-        this.iTID = siNextTID++;
+        Integer oFree = soFreeTIDs.pollFirst();
+        if (oFree == null) {
+            this.iTID = soNextTID.getAndIncrement();
+            return;
+        }
+        this.iTID = oFree;
+        this.iGeneration = soGenerations.getOrDefault(oFree, 0);
+    }
+
+    /**
+     * Gives our TID back, to be handed out to a thread created later. Only
+     * once nothing refers to it anymore: getTID() still returns it, but it
+     * may already be another thread's.
+     */
+    public final void retireTID() {
+        if (this.iTID > 0 && this.iTID < soNextTID.get()) {
+            //Counted before it can be handed out again
+            soGenerations.merge(this.iTID, 1, Integer::sum);
+            soFreeTIDs.add(this.iTID);
+        }
+    }
+
+    /**
+     * @return The TID the next thread created gets if none is given back
+     * meanwhile
+     */
+    public static int getNextTID() {
+        Integer oFree = soFreeTIDs.isEmpty() ? null : soFreeTIDs.first();
+        return (oFree != null) ? oFree : soNextTID.get();
+    }
+
+    /**
+     * Starts TIDs over from 1, forgetting the ones given back. Only when
+     * none of the threads created so far is in use anymore.
+     */
+    public static void resetTIDs() {
+        soFreeTIDs.clear();
+        soGenerations.clear();
+        soNextTID.set(1);
     }
 
     /**
@@ -94,9 +251,9 @@ public class BaseThread extends Thread {
         System.out.println(
                 "Some stats info in the PHASE I:\n"
                 + "    iTID = " + this.iTID
-                + ", siNextTID = " + siNextTID
-                + ", siTurn = " + siTurn
-                + ".\n    Their \"checksum\": " + (siNextTID * 100 + this.iTID * 10 + siTurn)
+                + ", siNextTID = " + getNextTID()
+                + ", siTurn = " + soTurn.get()
+                + ".\n    Their \"checksum\": " + (getNextTID() * 100 + this.iTID * 10 + soTurn.get())
         );
 
         System.out.println(this.getClass().getName() + " thread [TID=" + this.iTID + "] finishes PHASE I.");
@@ -112,9 +269,9 @@ public class BaseThread extends Thread {
         System.out.println(
                 "Some stats info in the PHASE II:\n"
                 + "    iTID = " + this.iTID
-                + ", siNextTID = " + siNextTID
-                + ", siTurn = " + siTurn
-                + ".\n    Their \"checksum\": " + (siNextTID * 100 + this.iTID * 10 + siTurn)
+                + ", siNextTID = " + getNextTID()
+                + ", siTurn = " + soTurn.get()
+                + ".\n    Their \"checksum\": " + (getNextTID() * 100 + this.iTID * 10 + soTurn.get())
         );
 
         System.out.println(this.getClass().getName() + " thread [TID=" + this.iTID + "] finishes PHASE II.");
@@ -123,7 +280,9 @@ public class BaseThread extends Thread {
     /**
      * Test-and-Set for the iTurn variable.
      *
-     * Use to proceed to the phase II in the correct order. Must be atomic.
+     * Use to proceed to the phase II in the correct order. Atomic: the turn
+     * is shared by all the threads, so it is a CAS on it, not a lock on this
+     * one.
      *
      * @param pcIncreasingOrder true if TIDs are in increasing order; false
      * otherwise
@@ -131,35 +290,56 @@ public class BaseThread extends Thread {
      * @return Returns true if if the TID of currently running thread matches
      * the turn, 'false' otherwise
      */
-    public synchronized boolean turnTestAndSet(boolean pcIncreasingOrder) {
-        // test
-        if (siTurn == this.iTID) {
-            // set siTurn = siTurn +/- 1;
-            if (pcIncreasingOrder == true) {
-                siTurn++;
-            } else {
-                siTurn--;
-            }
-
-            return true;
+    public boolean turnTestAndSet(boolean pcIncreasingOrder) {
+        // test and set soTurn = soTurn +/- 1
+        int iNext = pcIncreasingOrder ? this.iTID + 1 : this.iTID - 1;
+        if (!soTurn.compareAndSet(this.iTID, iNext)) {
+            return false;
         }
 
-        return false;
+        // Whoever has the turn now may be parked in awaitTurn()
+        Thread oNext = soTurnWaiters.get(iNext);
+        if (oNext != null) {
+            LockSupport.unpark(oNext);
+        }
+        return true;
     }
 
     /**
      * Always assumes the increasing order
      */
-    public synchronized boolean turnTestAndSet() {
+    public boolean turnTestAndSet() {
         return turnTestAndSet(true);
     }
 
+    /**
+     * Waits for our turn, to be passed on with turnTestAndSet() once done
+     * with it. Parks rather than yields: whoever passes us the turn unparks
+     * us. Only one thread may wait for a given TID's turn.
+     */
+    public void awaitTurn() {
+        if (soTurn.get() == this.iTID) {
+            return;
+        }
+
+        // Either the turn passed to us after we registered, or whoever
+        // passed it finds us registered
+        soTurnWaiters.put(this.iTID, Thread.currentThread());
+        try {
+            while (soTurn.get() != this.iTID) {
+                LockSupport.park(this);
+            }
+        } finally {
+            soTurnWaiters.remove(this.iTID);
+        }
+    }
+
     /**
      * Allows setting arbitratu turn value. Should be set only before the
      * threads are started
      */
     public static void setInitialTurn(int piTurn) {
-        siTurn = piTurn;
+        soTurn.set(piTurn);
     }
 
     /**
@@ -173,7 +353,7 @@ public class BaseThread extends Thread {
      * Descending order
      */
     public static void setInitialTurnDescending() {
-        setInitialTurn(siNextTID - 1);
+        setInitialTurn(soNextTID.get() - 1);
     }
 
     /**
@@ -182,10 +362,10 @@ public class BaseThread extends Thread {
      */
     public void randomYield() {
         // Generate from 5 to 40 yield()'s pseudorandomly
-        int iNumYields = (int) ((new Random()).nextFloat() * 35) + 5;
+        int iNumYields = random().nextInt(5, 41);
 
         for (int i = 0; i < iNumYields; i++) {
-            yield();
+            Thread.yield();
         }
     }
 }